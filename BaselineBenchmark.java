@@ -0,0 +1,101 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ContentSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Baseline retrieval: a cached lookup versus a blob read through {@code git cat-file --batch}.
+ * Sets up a throwaway repository, so git has to be on the PATH.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BaselineBenchmark {
+    private static final String FILE_NAME = "Fixture.java";
+    
+    @Param({"1000", "10000", "100000"})
+    private int lineCount;
+    
+    private Path repository;
+    private GitCatFileBatch catFileBatch;
+    private BaselineCache cache;
+    private BaselineCache.Key cachedKey;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        repository = Files.createTempDirectory("baseline-benchmark");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lineCount; i++) {
+            text.append("    private int field").append(i).append(" = ").append(i * 31 % 1000).append(";\n");
+        }
+        Files.writeString(repository.resolve(FILE_NAME), text);
+        git("init", "-q");
+        git("add", FILE_NAME);
+        git("-c", "user.name=bench", "-c", "user.email=bench@example.com", "commit", "-q", "-m", "fixture");
+        
+        catFileBatch = new GitCatFileBatch("git", repository.toString());
+        
+        cache = new BaselineCache(32L * 1024 * 1024);
+        cachedKey = new BaselineCache.Key(repository.toString(), "HEAD", FILE_NAME);
+        cache.put(cachedKey, ContentSnapshot.of(text.toString()));
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        catFileBatch.dispose();
+        try (Stream<Path> files = Files.walk(repository)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+    
+    @Benchmark
+    public ContentSnapshot cacheHit() {
+        return cache.get(cachedKey);
+    }
+    
+    /**
+     * A cache miss: reading the blob from the running cat-file process and decoding it
+     */
+    @Benchmark
+    public ContentSnapshot catFileRead() throws IOException {
+        GitCatFileBatch.Blob blob = catFileBatch.readObject("HEAD:" + FILE_NAME);
+        return ContentSnapshot.of(new String(blob.content(), StandardCharsets.UTF_8));
+    }
+    
+    private void git(String... args) throws IOException, InterruptedException {
+        String[] command = new String[args.length + 1];
+        command[0] = "git";
+        System.arraycopy(args, 0, command, 1, args.length);
+        Process process = new ProcessBuilder(command)
+            .directory(repository.toFile())
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        if (process.waitFor() != 0) {
+            throw new IOException("git " + String.join(" ", args) + " failed");
+        }
+    }
+}
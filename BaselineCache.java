@@ -0,0 +1,110 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ContentSnapshot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Size-bounded LRU cache of baseline file contents, weighted by the number of bytes held.
+ * Entries are keyed by repository root, revision and relative path.
+ */
+public final class BaselineCache {
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    private final long maxWeightBytes;
+    private final LinkedHashMap<Key, ContentSnapshot> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long currentWeightBytes;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    public BaselineCache(long maxWeightBytes) {
+        this.maxWeightBytes = maxWeightBytes;
+    }
+
+    public synchronized ContentSnapshot get(Key key) {
+        ContentSnapshot content = entries.get(key);
+        if (content != null) {
+            hitCount++;
+        } else {
+            missCount++;
+        }
+        return content;
+    }
+
+    /**
+     * Whether the key is cached, without counting a hit or miss
+     */
+    public synchronized boolean contains(Key key) {
+        return entries.containsKey(key);
+    }
+
+    public synchronized void put(Key key, ContentSnapshot content) {
+        long weight = weigh(content);
+        if (weight > maxWeightBytes) {
+            // Never cache a single entry larger than the whole budget
+            return;
+        }
+
+        ContentSnapshot previous = entries.put(key, content);
+        if (previous != null) {
+            currentWeightBytes -= weigh(previous);
+        }
+        currentWeightBytes += weight;
+
+        Iterator<Map.Entry<Key, ContentSnapshot>> iterator = entries.entrySet().iterator();
+        while (currentWeightBytes > maxWeightBytes && iterator.hasNext()) {
+            Map.Entry<Key, ContentSnapshot> eldest = iterator.next();
+            currentWeightBytes -= weigh(eldest.getValue());
+            iterator.remove();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Drops every entry of the given repository root, e.g. after its HEAD has moved
+     */
+    public synchronized void invalidateRoot(String rootPath) {
+        Iterator<Map.Entry<Key, ContentSnapshot>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, ContentSnapshot> entry = iterator.next();
+            if (entry.getKey().rootPath().equals(rootPath)) {
+                currentWeightBytes -= weigh(entry.getValue());
+                iterator.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        currentWeightBytes = 0;
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hitCount, missCount, evictionCount, entries.size(), currentWeightBytes);
+    }
+
+    private static long weigh(ContentSnapshot content) {
+        // Text is stored as UTF-16 in the worst case, plus roughly one int per line for the line index
+        return (long) content.getTextLength() * 2 + content.getTextLength() / 8 + ENTRY_OVERHEAD_BYTES;
+    }
+
+    public record Key(String rootPath, String revision, String relativePath) {
+        public Key {
+            Objects.requireNonNull(rootPath);
+            Objects.requireNonNull(revision);
+            Objects.requireNonNull(relativePath);
+        }
+    }
+
+    public record Stats(long hits, long misses, long evictions, int entryCount, long weightBytes) {
+        @Override
+        public String toString() {
+            return String.format("hits=%d, misses=%d, evictions=%d, entries=%d, bytes=%d",
+                hits, misses, evictions, entryCount, weightBytes);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ContentSnapshot;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BaselineCacheTest {
+    // Each 100 character entry weighs 100 * 2 + 100 / 8 + 64 = 276 bytes
+    private static final long TWO_ENTRIES_BYTES = 600;
+    
+    @Test
+    void evictsLeastRecentlyUsedEntryWhenOverBudget() {
+        BaselineCache cache = new BaselineCache(TWO_ENTRIES_BYTES);
+        BaselineCache.Key first = key("a.txt");
+        BaselineCache.Key second = key("b.txt");
+        BaselineCache.Key third = key("c.txt");
+        cache.put(first, text(100));
+        cache.put(second, text(100));
+        
+        // Touching the first entry makes the second one the eldest
+        cache.get(first);
+        cache.put(third, text(100));
+        
+        assertTrue(cache.contains(first));
+        assertFalse(cache.contains(second));
+        assertTrue(cache.contains(third));
+        assertEquals(1, cache.getStats().evictions());
+        assertEquals(2, cache.getStats().entryCount());
+        assertEquals(552, cache.getStats().weightBytes());
+    }
+    
+    @Test
+    void replacingAnEntryDoesNotCountItsOldWeight() {
+        BaselineCache cache = new BaselineCache(TWO_ENTRIES_BYTES);
+        BaselineCache.Key key = key("a.txt");
+        cache.put(key, text(100));
+        ContentSnapshot replacement = text(100);
+        cache.put(key, replacement);
+        cache.put(key("b.txt"), text(100));
+        
+        assertSame(replacement, cache.get(key));
+        assertEquals(0, cache.getStats().evictions());
+        assertEquals(552, cache.getStats().weightBytes());
+    }
+    
+    @Test
+    void neverCachesAnEntryLargerThanTheBudget() {
+        BaselineCache cache = new BaselineCache(TWO_ENTRIES_BYTES);
+        BaselineCache.Key small = key("a.txt");
+        cache.put(small, text(100));
+        cache.put(key("huge.txt"), text(1000));
+        
+        assertFalse(cache.contains(key("huge.txt")));
+        assertTrue(cache.contains(small));
+        assertEquals(0, cache.getStats().evictions());
+    }
+    
+    @Test
+    void invalidateRootDropsOnlyThatRoot() {
+        BaselineCache cache = new BaselineCache(10_000);
+        BaselineCache.Key kept = new BaselineCache.Key("/other", "abc", "a.txt");
+        cache.put(key("a.txt"), text(10));
+        cache.put(key("b.txt"), text(10));
+        cache.put(kept, text(10));
+        
+        cache.invalidateRoot("/repo");
+        
+        assertEquals(1, cache.getStats().entryCount());
+        assertTrue(cache.contains(kept));
+        assertEquals(10 * 2 + 10 / 8 + 64, cache.getStats().weightBytes());
+    }
+    
+    @Test
+    void countsHitsAndMisses() {
+        BaselineCache cache = new BaselineCache(10_000);
+        cache.put(key("a.txt"), text(10));
+        
+        cache.get(key("a.txt"));
+        assertNull(cache.get(key("b.txt")));
+        // contains() is not a lookup of the content
+        cache.contains(key("a.txt"));
+        
+        assertEquals(1, cache.getStats().hits());
+        assertEquals(1, cache.getStats().misses());
+    }
+    
+    private static BaselineCache.Key key(String relativePath) {
+        return new BaselineCache.Key("/repo", "abc", relativePath);
+    }
+    
+    private static ContentSnapshot text(int length) {
+        return ContentSnapshot.of("x".repeat(length));
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.diffplugin.actions;
+
+import com.example.diffplugin.model.FileDiff;
+import com.example.diffplugin.services.DiffModelService;
+import com.example.diffplugin.services.InlineDiffService;
+import com.example.diffplugin.services.ProjectDiffScanner;
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.command.UndoConfirmationPolicy;
+import com.intellij.openapi.command.WriteCommandAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.SelectionModel;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Accepts or rejects many blocks at once: those touched by the editor selection, all blocks of
+ * the current file or all blocks of every changed file. Rejecting is one undoable command however
+ * many documents it touches, and each document is re-rendered once at the end.
+ * Blocks already accepted are left alone.
+ */
+public abstract class BulkDiffAction extends AnAction {
+    private enum Scope { SELECTION, FILE, PROJECT }
+    
+    private final Scope scope;
+    private final boolean reject;
+    
+    private BulkDiffAction(Scope scope, boolean reject) {
+        this.scope = scope;
+        this.reject = reject;
+    }
+    
+    public static final class AcceptInSelection extends BulkDiffAction {
+        public AcceptInSelection() {
+            super(Scope.SELECTION, false);
+        }
+    }
+    
+    public static final class RejectInSelection extends BulkDiffAction {
+        public RejectInSelection() {
+            super(Scope.SELECTION, true);
+        }
+    }
+    
+    public static final class AcceptInFile extends BulkDiffAction {
+        public AcceptInFile() {
+            super(Scope.FILE, false);
+        }
+    }
+    
+    public static final class RejectInFile extends BulkDiffAction {
+        public RejectInFile() {
+            super(Scope.FILE, true);
+        }
+    }
+    
+    public static final class AcceptInAllFiles extends BulkDiffAction {
+        public AcceptInAllFiles() {
+            super(Scope.PROJECT, false);
+        }
+    }
+    
+    public static final class RejectInAllFiles extends BulkDiffAction {
+        public RejectInAllFiles() {
+            super(Scope.PROJECT, true);
+        }
+    }
+    
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) return;
+        
+        if (scope == Scope.PROJECT) {
+            collectChangedDocuments(project);
+            return;
+        }
+        
+        Editor editor = e.getData(CommonDataKeys.EDITOR);
+        VirtualFile file = e.getData(CommonDataKeys.VIRTUAL_FILE);
+        if (editor == null || file == null) return;
+        
+        Document document = editor.getDocument();
+        SelectionModel selection = editor.getSelectionModel();
+        int selectionStart = selection.getSelectionStart();
+        int selectionEnd = selection.getSelectionEnd();
+        long modificationStamp = document.getModificationStamp();
+        collectInBackground(project, "Computing changes", indicator -> {
+            DiffModelService diffModel = project.getService(DiffModelService.class);
+            diffModel.prefetch(file);
+            Target target = ReadAction.compute(() -> {
+                // The selection offsets belong to the text the action was invoked on
+                FileDiff fileDiff = document.getModificationStamp() == modificationStamp
+                    ? diffModel.getFileDiff(document, file) : null;
+                if (fileDiff == null) {
+                    return null;
+                }
+                Predicate<String> blockFilter = notAccepted(diffModel, document);
+                if (scope == Scope.SELECTION) {
+                    Set<String> selectedBlockIds = collectSelectedBlockIds(document, selectionStart, selectionEnd, fileDiff);
+                    blockFilter = blockFilter.and(selectedBlockIds::contains);
+                }
+                return new Target(document, file, fileDiff, blockFilter);
+            });
+            return target != null ? List.of(target) : List.of();
+        });
+    }
+    
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        boolean enabled = e.getProject() != null;
+        if (scope != Scope.PROJECT) {
+            enabled &= e.getData(CommonDataKeys.EDITOR) != null && e.getData(CommonDataKeys.VIRTUAL_FILE) != null;
+        }
+        e.getPresentation().setEnabledAndVisible(enabled);
+    }
+    
+    /**
+     * Diffs every changed file in the background, loading documents as needed, then applies the
+     * action to those that have blocks
+     */
+    private void collectChangedDocuments(Project project) {
+        collectInBackground(project, "Collecting changes", indicator -> {
+            DiffModelService diffModel = project.getService(DiffModelService.class);
+            List<VirtualFile> changedFiles = project.getService(ProjectDiffScanner.class).collectChangedFiles();
+            indicator.setIndeterminate(false);
+            
+            List<Target> targets = new ArrayList<>();
+            for (int i = 0; i < changedFiles.size(); i++) {
+                indicator.checkCanceled();
+                indicator.setFraction((double) i / changedFiles.size());
+                VirtualFile file = changedFiles.get(i);
+                diffModel.prefetch(file);
+                Target target = ReadAction.compute(() -> {
+                    Document document = FileDocumentManager.getInstance().getDocument(file);
+                    if (document == null) {
+                        return null;
+                    }
+                    FileDiff fileDiff = diffModel.getFileDiff(document, file);
+                    return fileDiff != null && fileDiff.getBlockCount() > 0
+                        ? new Target(document, file, fileDiff, notAccepted(diffModel, document)) : null;
+                });
+                if (target != null) {
+                    targets.add(target);
+                }
+            }
+            return targets;
+        });
+    }
+    
+    /**
+     * Computes the targets on a background thread, where git may run and diffing doesn't block
+     * the UI, then applies the action to them on the EDT. Targets whose document was edited in
+     * the meantime are left alone.
+     */
+    private void collectInBackground(Project project, String title, Function<ProgressIndicator, List<Target>> collector) {
+        new Task.Backgroundable(project, title, true) {
+            private List<Target> targets = List.of();
+            
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                targets = collector.apply(indicator);
+            }
+            
+            @Override
+            public void onSuccess() {
+                List<Target> currentTargets = new ArrayList<>(targets.size());
+                for (Target target : targets) {
+                    if (target.fileDiff.getModificationStamp() == target.document.getModificationStamp()) {
+                        currentTargets.add(target);
+                    }
+                }
+                if (!currentTargets.isEmpty()) {
+                    apply(project, currentTargets);
+                } else if (!targets.isEmpty()) {
+                    showNotification(project, "The changes were edited while they were collected, nothing was "
+                        + (reject ? "rejected" : "accepted"));
+                }
+            }
+        }.queue();
+    }
+    
+    private void apply(Project project, List<Target> targets) {
+        DiffModelService diffModel = project.getService(DiffModelService.class);
+        int[] blockCount = new int[1];
+        Set<Document> changedDocuments = new HashSet<>();
+        
+        try {
+            if (reject) {
+                WriteCommandAction.Builder command = WriteCommandAction.writeCommandAction(project)
+                    .withName("Reject Changes");
+                if (scope == Scope.PROJECT) {
+                    // Spans many documents, so it is undone from any editor and asks before doing so
+                    command = command.withGlobalUndo()
+                        .withUndoConfirmationPolicy(UndoConfirmationPolicy.REQUEST_CONFIRMATION);
+                }
+                command.run(() -> {
+                    for (Target target : targets) {
+                        if (!target.document.isWritable()) continue;
+                        int rejected = diffModel.rejectBlocks(target.document, target.fileDiff, target.blockFilter);
+                        if (rejected > 0) {
+                            blockCount[0] += rejected;
+                            changedDocuments.add(target.document);
+                        }
+                    }
+                });
+            } else {
+                for (Target target : targets) {
+                    int accepted = diffModel.acceptBlocks(target.document, target.fileDiff, target.blockFilter);
+                    if (accepted > 0) {
+                        blockCount[0] += accepted;
+                        changedDocuments.add(target.document);
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            showNotification(project, "Failed to " + (reject ? "reject" : "accept") + " changes: " + ex.getMessage());
+            return;
+        }
+        
+        // One re-render per document, after all blocks of the operation are done
+        InlineDiffService inlineDiff = project.getService(InlineDiffService.class);
+        for (Target target : targets) {
+            if (changedDocuments.contains(target.document)) {
+                inlineDiff.refreshFromModel(target.document, target.file);
+            }
+        }
+        
+        if (blockCount[0] > 0) {
+            showNotification(project, (reject ? "Rejected " : "Accepted ") + blockCount[0]
+                + (blockCount[0] == 1 ? " change" : " changes") + " in " + changedDocuments.size()
+                + (changedDocuments.size() == 1 ? " file" : " files"));
+        }
+    }
+    
+    /**
+     * Ids of the blocks on the lines of the selection, or on the caret line if nothing is selected.
+     * A deletion counts as being on the line that follows it.
+     */
+    private static Set<String> collectSelectedBlockIds(Document document, int selectionStart, int selectionEnd,
+                                                       FileDiff fileDiff) {
+        int startLine = document.getLineNumber(selectionStart);
+        int endLine = document.getLineNumber(selectionEnd);
+        // A selection of whole lines ends at the start of the next line, which is not selected
+        if (endLine > startLine && document.getLineStartOffset(endLine) == selectionEnd) {
+            endLine--;
+        }
+        
+        Set<String> blockIds = new HashSet<>();
+        for (int i = fileDiff.findFirstBlockAfter(startLine);
+             i < fileDiff.getBlockCount() && fileDiff.getStartLine(i) <= endLine; i++) {
+            blockIds.add(fileDiff.getBlockId(i));
+        }
+        return blockIds;
+    }
+    
+    private static Predicate<String> notAccepted(DiffModelService diffModel, Document document) {
+        Set<String> accepted = diffModel.getAcceptedBlockIds(document);
+        return blockId -> !accepted.contains(blockId);
+    }
+    
+    private static void showNotification(Project project, String message) {
+        Notifications.Bus.notify(new Notification("DiffPlugin", "Diff Plugin", message, NotificationType.INFORMATION), project);
+    }
+    
+    /**
+     * A document with the diff the action works on, computed before the write command
+     */
+    private record Target(Document document, VirtualFile file, FileDiff fileDiff, Predicate<String> blockFilter) {
+    }
+}
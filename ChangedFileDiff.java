@@ -0,0 +1,53 @@
+package com.example.diffplugin.model;
+
+import com.intellij.openapi.vfs.VirtualFile;
+
+/**
+ * Summary of the diff of one changed file, as produced by the project-wide scan.
+ * Only counts are kept so that scanning thousands of files does not retain their contents.
+ */
+public final class ChangedFileDiff {
+    private final VirtualFile file;
+    private final String relativePath;
+    private final int blockCount;
+    private final int addedLines;
+    private final int removedLines;
+    
+    public ChangedFileDiff(VirtualFile file, String relativePath, int blockCount, int addedLines, int removedLines) {
+        this.file = file;
+        this.relativePath = relativePath;
+        this.blockCount = blockCount;
+        this.addedLines = addedLines;
+        this.removedLines = removedLines;
+    }
+    
+    public static ChangedFileDiff of(VirtualFile file, String relativePath, FileDiff fileDiff) {
+        int added = 0;
+        int removed = 0;
+        for (int i = 0; i < fileDiff.getBlockCount(); i++) {
+            added += fileDiff.getEndLine(i) - fileDiff.getStartLine(i);
+            removed += fileDiff.getOldEndLine(i) - fileDiff.getOldStartLine(i);
+        }
+        return new ChangedFileDiff(file, relativePath, fileDiff.getBlockCount(), added, removed);
+    }
+    
+    public VirtualFile getFile() {
+        return file;
+    }
+    
+    public String getRelativePath() {
+        return relativePath;
+    }
+    
+    public int getBlockCount() {
+        return blockCount;
+    }
+    
+    public int getAddedLines() {
+        return addedLines;
+    }
+    
+    public int getRemovedLines() {
+        return removedLines;
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.diffplugin.ui;
+
+import com.example.diffplugin.model.ChangedFileDiff;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.ui.CollectionListModel;
+import com.intellij.ui.ColoredListCellRenderer;
+import com.intellij.ui.DoubleClickListener;
+import com.intellij.ui.JBColor;
+import com.intellij.ui.SimpleTextAttributes;
+import com.intellij.ui.components.JBList;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.util.ui.JBUI;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lists the changed files of the project with their added/removed line counts.
+ * Results arrive from scan worker threads and are appended to the list in batches on the EDT.
+ */
+public class ChangedFilesPanel extends JPanel implements Disposable {
+    private static final SimpleTextAttributes ADDED_ATTRIBUTES =
+        new SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor.GREEN.darker());
+    private static final SimpleTextAttributes REMOVED_ATTRIBUTES =
+        new SimpleTextAttributes(SimpleTextAttributes.STYLE_PLAIN, JBColor.RED.darker());
+    
+    private final Project project;
+    private final CollectionListModel<ChangedFileDiff> listModel = new CollectionListModel<>();
+    private final JLabel summaryLabel = new JLabel();
+    private final Queue<ChangedFileDiff> pendingResults = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    
+    private volatile ProgressIndicator scanIndicator;
+    private int totalFiles = -1;
+    private int addedLines;
+    private int removedLines;
+    private String status = "Scanning...";
+    
+    public ChangedFilesPanel(Project project) {
+        super(new BorderLayout());
+        this.project = project;
+        initializeUI();
+    }
+    
+    private void initializeUI() {
+        JPanel headerPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        headerPanel.setBorder(JBUI.Borders.empty(5));
+        
+        JLabel titleLabel = new JLabel("Changed files");
+        titleLabel.setFont(titleLabel.getFont().deriveFont(Font.BOLD, 14f));
+        headerPanel.add(titleLabel);
+        
+        summaryLabel.setForeground(JBColor.GRAY);
+        headerPanel.add(summaryLabel);
+        add(headerPanel, BorderLayout.NORTH);
+        
+        JBList<ChangedFileDiff> list = new JBList<>(listModel);
+        list.setCellRenderer(new ChangedFileRenderer());
+        new DoubleClickListener() {
+            @Override
+            protected boolean onDoubleClick(@NotNull MouseEvent event) {
+                ChangedFileDiff selected = list.getSelectedValue();
+                if (selected == null || !selected.getFile().isValid()) {
+                    return false;
+                }
+                FileEditorManager.getInstance(project).openFile(selected.getFile(), true);
+                return true;
+            }
+        }.installOn(list);
+        
+        add(new JBScrollPane(list), BorderLayout.CENTER);
+        updateSummary();
+    }
+    
+    /**
+     * Binds the scan to this panel before it starts, closing the panel cancels the scan
+     */
+    public void attachScan(ProgressIndicator indicator) {
+        scanIndicator = indicator;
+    }
+    
+    public void setTotalFiles(int totalFiles) {
+        ApplicationManager.getApplication().invokeLater(() -> {
+            this.totalFiles = totalFiles;
+            updateSummary();
+        }, ModalityState.any());
+    }
+    
+    /**
+     * Queues a result for display, may be called from any thread
+     */
+    public void addResult(ChangedFileDiff result) {
+        pendingResults.add(result);
+        if (flushScheduled.compareAndSet(false, true)) {
+            ApplicationManager.getApplication().invokeLater(this::flushResults, ModalityState.any());
+        }
+    }
+    
+    public void scanFinished(boolean cancelled) {
+        ApplicationManager.getApplication().invokeLater(() -> {
+            flushResults();
+            this.status = cancelled ? "Cancelled" : "Done";
+            updateSummary();
+        }, ModalityState.any());
+    }
+    
+    private void flushResults() {
+        flushScheduled.set(false);
+        
+        List<ChangedFileDiff> batch = new ArrayList<>();
+        ChangedFileDiff result;
+        while ((result = pendingResults.poll()) != null) {
+            batch.add(result);
+            addedLines += result.getAddedLines();
+            removedLines += result.getRemovedLines();
+        }
+        
+        if (!batch.isEmpty()) {
+            listModel.add(batch);
+            updateSummary();
+        }
+    }
+    
+    private void updateSummary() {
+        String total = totalFiles >= 0 ? String.valueOf(totalFiles) : "?";
+        summaryLabel.setText(String.format("(%d of %s files with changes, +%d -%d) %s",
+            listModel.getSize(), total, addedLines, removedLines, status));
+    }
+    
+    @Override
+    public void dispose() {
+        ProgressIndicator indicator = scanIndicator;
+        if (indicator != null) {
+            indicator.cancel();
+        }
+        pendingResults.clear();
+    }
+    
+    private static class ChangedFileRenderer extends ColoredListCellRenderer<ChangedFileDiff> {
+        @Override
+        protected void customizeCellRenderer(@NotNull JList<? extends ChangedFileDiff> list, ChangedFileDiff value,
+                                             int index, boolean selected, boolean hasFocus) {
+            append(value.getRelativePath());
+            append("  +" + value.getAddedLines(), ADDED_ATTRIBUTES);
+            append(" -" + value.getRemovedLines(), REMOVED_ATTRIBUTES);
+            append("  (" + value.getBlockCount() + " changes)", SimpleTextAttributes.GRAYED_ATTRIBUTES);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.example.diffplugin.model;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+
+/**
+ * Immutable view of a text together with its line-start index.
+ * Snapshots of a {@link Document} share the document's immutable character sequence, so taking
+ * one does not copy the text. The line index is built at most once per snapshot and reused by
+ * every diff computed against it.
+ */
+public final class ContentSnapshot {
+    private static final int[] EMPTY_LINE_STARTS = {0};
+    
+    private final CharSequence text;
+    // Weak, so that caches keyed by the document, which hold its snapshots, do not keep it alive
+    private final @Nullable Reference<Document> document;
+    private final long modificationStamp;
+    private volatile int[] lineStarts;
+    
+    private ContentSnapshot(CharSequence text, @Nullable Document document, long modificationStamp) {
+        this.text = text;
+        this.document = document != null ? new WeakReference<>(document) : null;
+        this.modificationStamp = modificationStamp;
+    }
+    
+    /**
+     * Takes a snapshot of the document's current text, should be called under a read action
+     */
+    public static ContentSnapshot of(@NotNull Document document) {
+        return new ContentSnapshot(document.getImmutableCharSequence(), document, document.getModificationStamp());
+    }
+    
+    public static ContentSnapshot of(@NotNull CharSequence text) {
+        return new ContentSnapshot(text, null, -1);
+    }
+    
+    public CharSequence getText() {
+        return text;
+    }
+    
+    public int getTextLength() {
+        return text.length();
+    }
+    
+    /**
+     * Modification stamp of the document the snapshot was taken from, -1 for plain texts
+     */
+    public long getModificationStamp() {
+        return modificationStamp;
+    }
+    
+    public int getLineCount() {
+        Document document = getCurrentDocument();
+        if (document != null) {
+            return Math.max(document.getLineCount(), 1);
+        }
+        return getLineStarts().length;
+    }
+    
+    public int getLineStart(int line) {
+        Document document = getCurrentDocument();
+        if (document != null) {
+            return document.getLineStartOffset(line);
+        }
+        return getLineStarts()[line];
+    }
+    
+    /**
+     * End offset of the line, excluding its line separator
+     */
+    public int getLineEnd(int line) {
+        Document document = getCurrentDocument();
+        if (document != null) {
+            return document.getLineEndOffset(line);
+        }
+        int[] starts = getLineStarts();
+        return line + 1 < starts.length ? starts[line + 1] - 1 : text.length();
+    }
+    
+    public CharSequence getLine(int line) {
+        return text.subSequence(getLineStart(line), getLineEnd(line));
+    }
+    
+    /**
+     * Text of lines [startLine, endLine) without the separator after the last line
+     */
+    public CharSequence getLines(int startLine, int endLine) {
+        if (startLine >= endLine) {
+            return "";
+        }
+        return text.subSequence(getLineStart(startLine), getLineEnd(endLine - 1));
+    }
+    
+    /**
+     * Range of lines [startLine, endLine) including their line separators, so that replacing it
+     * with the range of other lines swaps whole lines. A range reaching the end of the text starts
+     * at the separator in front of it instead, as the last line has none.
+     */
+    public TextRange getLinesRange(int startLine, int endLine) {
+        if (endLine < getLineCount()) {
+            return new TextRange(getLineStart(startLine), getLineStart(endLine));
+        }
+        int startOffset = startLine > 0 ? getLineEnd(startLine - 1) : 0;
+        return new TextRange(startOffset, getTextLength());
+    }
+    
+    public boolean contentEquals(ContentSnapshot other) {
+        return this == other || StringUtil.equals(text, other.text);
+    }
+    
+    /**
+     * While the document is unchanged its own line index describes this snapshot, so there is no
+     * need to build a second one. Only safe under a read action, where the document cannot change.
+     * Null if the document changed, was released or there is no read access.
+     */
+    private @Nullable Document getCurrentDocument() {
+        Document current = document != null ? document.get() : null;
+        return current != null
+            && current.getModificationStamp() == modificationStamp
+            && ApplicationManager.getApplication().isReadAccessAllowed() ? current : null;
+    }
+    
+    private int[] getLineStarts() {
+        int[] starts = lineStarts;
+        if (starts == null) {
+            starts = buildLineStarts(text);
+            lineStarts = starts;
+        }
+        return starts;
+    }
+    
+    private static int[] buildLineStarts(CharSequence text) {
+        int length = text.length();
+        if (length == 0) {
+            return EMPTY_LINE_STARTS;
+        }
+        
+        int[] starts = new int[Math.max(16, length / 32)];
+        int count = 0;
+        starts[count++] = 0;
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(i) == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, starts.length * 2);
+                }
+                starts[count++] = i + 1;
+            }
+        }
+        return Arrays.copyOf(starts, count);
+    }
+}
@@ -1,9 +1,12 @@
 package com.example.diffplugin.model;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Represents a block of differences between two versions of a file
+ * Represents a block of differences between two versions of a file.
+ * Blocks only hold line ranges and references to the shared baseline and current snapshots;
+ * their text is materialized when it is displayed.
  */
 public class DiffBlock {
     public enum Type {
@@ -12,21 +15,51 @@ public class DiffBlock {
         MODIFIED  // Changed lines (combination of red/green)
     }
     
+    /**
+     * Where the change of a block lives when the index is compared as well
+     */
+    public enum Stage {
+        UNSTAGED("unstaged"),                 // Only in the working tree
+        STAGED("staged"),                     // Added to the index, the working tree matches it
+        PARTIALLY_STAGED("partially staged"); // Staged and changed again in the working tree
+        
+        private final String displayName;
+        
+        Stage(String displayName) {
+            this.displayName = displayName;
+        }
+        
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+    
     private final Type type;
     private final int startLine;
     private final int endLine;
-    private final List<String> oldContent;
-    private final List<String> newContent;
+    private final int oldStartLine;
+    private final int oldEndLine;
+    private final ContentSnapshot baseline;
+    private final ContentSnapshot currentContent;
     private final String blockId;
+    private final Stage stage;
+    
+    public DiffBlock(Type type, int startLine, int endLine, int oldStartLine, int oldEndLine,
+                     ContentSnapshot baseline, ContentSnapshot currentContent, String blockId) {
+        this(type, startLine, endLine, oldStartLine, oldEndLine, baseline, currentContent, blockId, null);
+    }
     
-    public DiffBlock(Type type, int startLine, int endLine, 
-                     List<String> oldContent, List<String> newContent, String blockId) {
+    public DiffBlock(Type type, int startLine, int endLine, int oldStartLine, int oldEndLine,
+                     ContentSnapshot baseline, ContentSnapshot currentContent, String blockId, Stage stage) {
         this.type = type;
         this.startLine = startLine;
         this.endLine = endLine;
-        this.oldContent = oldContent;
-        this.newContent = newContent;
+        this.oldStartLine = oldStartLine;
+        this.oldEndLine = oldEndLine;
+        this.baseline = baseline;
+        this.currentContent = currentContent;
         this.blockId = blockId;
+        this.stage = stage;
     }
     
     public Type getType() {
@@ -41,18 +74,84 @@ public class DiffBlock {
         return endLine;
     }
     
+    /**
+     * First line of the block in the original (HEAD) content
+     */
+    public int getOldStartLine() {
+        return oldStartLine;
+    }
+    
+    public int getOldEndLine() {
+        return oldEndLine;
+    }
+    
+    /**
+     * Change in line count introduced by this block
+     */
+    public int getLineDelta() {
+        return (endLine - startLine) - (oldEndLine - oldStartLine);
+    }
+    
+    /**
+     * Lines of the original content replaced by this block, built on each call
+     */
     public List<String> getOldContent() {
-        return oldContent;
+        return materializeLines(baseline, oldStartLine, oldEndLine);
     }
     
+    /**
+     * Lines of the current content introduced by this block, built on each call
+     */
     public List<String> getNewContent() {
-        return newContent;
+        return materializeLines(currentContent, startLine, endLine);
+    }
+    
+    /**
+     * At most the first maxLines lines of {@link #getOldContent()}, for previews of large blocks
+     */
+    public List<String> getOldContent(int maxLines) {
+        return materializeLines(baseline, oldStartLine, Math.min(oldEndLine, oldStartLine + maxLines));
+    }
+    
+    public List<String> getNewContent(int maxLines) {
+        return materializeLines(currentContent, startLine, Math.min(endLine, startLine + maxLines));
+    }
+    
+    /**
+     * Text of the original lines, without the separator after the last one
+     */
+    public CharSequence getOldText() {
+        return baseline.getLines(oldStartLine, Math.min(oldEndLine, baseline.getLineCount()));
+    }
+    
+    public CharSequence getNewText() {
+        return currentContent.getLines(startLine, Math.min(endLine, currentContent.getLineCount()));
+    }
+    
+    private static List<String> materializeLines(ContentSnapshot content, int startLine, int endLine) {
+        int actualEndLine = Math.min(endLine, content.getLineCount());
+        if (startLine < 0 || startLine >= actualEndLine) {
+            return new ArrayList<>(0);
+        }
+        
+        List<String> lines = new ArrayList<>(actualEndLine - startLine);
+        for (int line = startLine; line < actualEndLine; line++) {
+            lines.add(content.getLine(line).toString());
+        }
+        return lines;
     }
     
     public String getBlockId() {
         return blockId;
     }
     
+    /**
+     * Stage of the change, null unless the diff was classified against the index
+     */
+    public Stage getStage() {
+        return stage;
+    }
+    
     public boolean isAddition() {
         return type == Type.ADDED;
     }
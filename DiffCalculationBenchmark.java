@@ -0,0 +1,161 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ContentSnapshot;
+import com.example.diffplugin.model.DiffBlock;
+import com.example.diffplugin.model.FileDiff;
+import com.intellij.diff.comparison.ComparisonManagerImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Diff engine throughput across file sizes and edit densities.
+ * Run with {@code ./gradlew jmh}; the gc profiler adds the allocation rate per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffCalculationBenchmark {
+    public enum EditPattern {
+        SINGLE_LINE,  // One modified line in the middle
+        SCATTERED,    // One modified, inserted or deleted line every 50 lines
+        REWRITE       // Every line modified
+    }
+    
+    @Param({"1000", "10000", "100000"})
+    private int lineCount;
+    
+    @Param({"SINGLE_LINE", "SCATTERED", "REWRITE"})
+    private EditPattern editPattern;
+    
+    private DiffCalculationService diffService;
+    private String baselineText;
+    private String currentText;
+    private ContentSnapshot baseline;
+    private ContentSnapshot current;
+    private FileDiff fileDiff;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        diffService = new DiffCalculationService(new ComparisonManagerImpl());
+        
+        Random random = new Random(42);
+        String[] lines = new String[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            lines[i] = generateLine(random, i);
+        }
+        baselineText = String.join("\n", lines) + "\n";
+        currentText = applyEdits(lines, random);
+        
+        baseline = ContentSnapshot.of(baselineText);
+        current = ContentSnapshot.of(currentText);
+        fileDiff = diffService.calculateDiff(baseline, current);
+    }
+    
+    /**
+     * Full diff including building both line indexes, as after a baseline refresh
+     */
+    @Benchmark
+    public FileDiff calculateDiff() {
+        return diffService.calculateDiff(ContentSnapshot.of(baselineText), ContentSnapshot.of(currentText));
+    }
+    
+    /**
+     * Diff of snapshots whose line indexes are already built, as for repeated edits of one document
+     */
+    @Benchmark
+    public FileDiff calculateDiffIndexed() {
+        return diffService.calculateDiff(baseline, current);
+    }
+    
+    /**
+     * The linear-space large file mode on the same input, regardless of the size threshold
+     */
+    @Benchmark
+    public boolean calculateDiffLinearSpace() {
+        FileDiff.Builder builder = FileDiff.builder(baseline, current);
+        return MyersLineDiff.compare(builder, baseline, 0, baseline.getLineCount(),
+            current, 0, current.getLineCount(), TimeUnit.HOURS.toMillis(1));
+    }
+    
+    /**
+     * Creating the block views and materializing their text, as the popup and diff view do
+     */
+    @Benchmark
+    public void materializeBlocks(Blackhole blackhole) {
+        for (DiffBlock block : fileDiff.getDiffBlocks()) {
+            blackhole.consume(block.getOldContent());
+            blackhole.consume(block.getNewContent());
+        }
+    }
+    
+    /**
+     * Content hashing of all blocks, ids are cached per diff so every invocation needs a fresh copy
+     */
+    @Benchmark
+    public void blockIds(Blackhole blackhole) {
+        FileDiff.Builder builder = FileDiff.builder(baseline, current);
+        for (int i = 0; i < fileDiff.getBlockCount(); i++) {
+            builder.addBlock(fileDiff, i, 0);
+        }
+        FileDiff copy = builder.build();
+        for (int i = 0; i < copy.getBlockCount(); i++) {
+            blackhole.consume(copy.getBlockId(i));
+        }
+    }
+    
+    /**
+     * Line splitting: building the line index of a fresh snapshot
+     */
+    @Benchmark
+    public int lineIndex() {
+        ContentSnapshot snapshot = ContentSnapshot.of(currentText);
+        return snapshot.getLineCount() + snapshot.getLineStart(snapshot.getLineCount() - 1);
+    }
+    
+    private String applyEdits(String[] baselineLines, Random random) {
+        StringBuilder text = new StringBuilder(baselineText.length() + 1024);
+        for (int i = 0; i < baselineLines.length; i++) {
+            switch (editPattern) {
+                case SINGLE_LINE -> text.append(i == baselineLines.length / 2 ? "    // edited" : baselineLines[i]).append('\n');
+                case REWRITE -> text.append(generateLine(random, i)).append(" // rewritten").append('\n');
+                case SCATTERED -> {
+                    switch (i % 150) {
+                        case 0 -> text.append("    int inserted").append(i).append(" = 0;\n").append(baselineLines[i]).append('\n');
+                        case 50 -> text.append(baselineLines[i]).append(" // modified\n");
+                        case 100 -> { } // deleted
+                        default -> text.append(baselineLines[i]).append('\n');
+                    }
+                }
+            }
+        }
+        return text.toString();
+    }
+    
+    private static String generateLine(Random random, int index) {
+        return switch (random.nextInt(6)) {
+            case 0 -> "";
+            case 1 -> "    }";
+            case 2 -> "    private int field" + index + " = " + random.nextInt(1000) + ";";
+            case 3 -> "        result.add(value" + random.nextInt(100) + ");";
+            case 4 -> "    public void method" + index + "() {";
+            default -> "        // " + Long.toHexString(random.nextLong());
+        };
+    }
+}
@@ -1,85 +1,317 @@
 package com.example.diffplugin.services;
 
+import com.example.diffplugin.model.ContentSnapshot;
 import com.example.diffplugin.model.DiffBlock;
+import com.example.diffplugin.model.DirtyRegion;
+import com.example.diffplugin.model.FileDiff;
+import com.example.diffplugin.model.LineInterner;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.diff.comparison.ComparisonManager;
 import com.intellij.diff.comparison.ComparisonPolicy;
+import com.intellij.diff.comparison.DiffTooBigException;
+import com.intellij.diff.fragments.DiffFragment;
 import com.intellij.diff.fragments.LineFragment;
 import com.intellij.openapi.progress.DumbProgressIndicator;
-import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressIndicatorProvider;
+import com.intellij.openapi.util.registry.Registry;
+import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 
 @Service
 public final class DiffCalculationService {
     private static final Logger LOG = Logger.getInstance(DiffCalculationService.class);
+    private static final String LARGE_FILE_THRESHOLD_KEY = "unified.diff.large.file.threshold.lines";
+    private static final String LARGE_FILE_TIME_BUDGET_KEY = "unified.diff.large.file.time.budget.ms";
+    // Blocks larger than this on either side get no inner fragments, they would only be noise
+    private static final int MAX_INNER_FRAGMENT_CHARS = 20_000;
+    private static final int INNER_FRAGMENT_CACHE_SIZE = 1024;
+    
+    private final ComparisonManager comparisonManager;
+    // Keyed by block id, which is a hash of the block's old and new text
+    private final Map<String, List<DiffFragment>> innerFragments = Collections.synchronizedMap(
+        new LinkedHashMap<>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<DiffFragment>> eldest) {
+                return size() > INNER_FRAGMENT_CACHE_SIZE;
+            }
+        });
+    
+    public DiffCalculationService() {
+        this(null);
+    }
+    
+    /**
+     * Lets benchmarks run without an application, a null manager means the application's one
+     */
+    DiffCalculationService(ComparisonManager comparisonManager) {
+        this.comparisonManager = comparisonManager;
+    }
     
     /**
      * Calculates diff blocks between old and new content
      */
-    public List<DiffBlock> calculateDiff(String oldContent, String newContent) {
-        if (oldContent == null || newContent == null) {
+    public FileDiff calculateDiff(ContentSnapshot oldContent, ContentSnapshot newContent) {
+        FileDiff.Builder builder = FileDiff.builder(oldContent, newContent);
+        try {
+            appendWindowBlocks(builder, oldContent, 0, countLines(oldContent),
+                newContent, 0, countLines(newContent));
+                
+        } catch (ProcessCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            LOG.error("Failed to calculate diff", e);
+            return FileDiff.builder(oldContent, newContent).build();
+        }
+        return builder.build();
+    }
+    
+    /**
+     * Word-level changes inside a modified block, offsets relative to {@link DiffBlock#getOldText()}
+     * and {@link DiffBlock#getNewText()}. Computed in the background the first time a block is
+     * shown and cached by its content; empty for additions, deletions and very large blocks.
+     */
+    public List<DiffFragment> getInnerFragments(DiffBlock block) {
+        if (!block.isModification()) {
             return Collections.emptyList();
         }
+        List<DiffFragment> cached = innerFragments.get(block.getBlockId());
+        if (cached != null) {
+            return cached;
+        }
         
-        try {
-            List<String> oldLines = StringUtil.split(oldContent, "\n");
-            List<String> newLines = StringUtil.split(newContent, "\n");
+        CharSequence oldText = block.getOldText();
+        CharSequence newText = block.getNewText();
+        List<DiffFragment> fragments = Collections.emptyList();
+        if (oldText.length() <= MAX_INNER_FRAGMENT_CHARS && newText.length() <= MAX_INNER_FRAGMENT_CHARS) {
+            try {
+                ComparisonManager manager = comparisonManager != null ? comparisonManager : ComparisonManager.getInstance();
+                fragments = manager.compareWords(oldText, newText, ComparisonPolicy.DEFAULT, DumbProgressIndicator.INSTANCE);
+            } catch (DiffTooBigException e) {
+                // Shown without inner fragments
+            } catch (ProcessCanceledException e) {
+                throw e;
+            } catch (Exception e) {
+                LOG.warn("Failed to compute inner fragments of block " + block.getBlockId(), e);
+            }
+        }
+        innerFragments.put(block.getBlockId(), fragments);
+        return fragments;
+    }
+    
+    /**
+     * Inner fragments of the block if they were computed already, null otherwise. Never compares,
+     * so it is cheap enough for painting code on the EDT.
+     */
+    public @Nullable List<DiffFragment> getCachedInnerFragments(DiffBlock block) {
+        return block.isModification() ? innerFragments.get(block.getBlockId()) : Collections.emptyList();
+    }
+    
+    /**
+     * Classifies the blocks of a baseline to working tree diff by the index content: a block is
+     * staged where the index already holds its change, unstaged where the index still matches the
+     * baseline, and partially staged where it differs from both. The three texts are interned
+     * once into shared line ids, so the two extra comparisons run on ints and hash no line twice.
+     * Only hunks inside a block count for it, not those that merely border it. A block that neither
+     * comparison aligns with, which happens when they split the change differently, is unstaged.
+     */
+    public FileDiff classifyStages(FileDiff fileDiff, ContentSnapshot index) {
+        if (fileDiff.isEmpty()) {
+            return fileDiff;
+        }
+        ContentSnapshot baseline = fileDiff.getBaseline();
+        ContentSnapshot current = fileDiff.getCurrentContent();
+        int baselineLines = countLines(baseline);
+        int indexLines = countLines(index);
+        int currentLines = countLines(current);
+        
+        LineInterner interner = new LineInterner(baselineLines + indexLines + currentLines);
+        int[] baselineIds = interner.intern(baseline, 0, baselineLines);
+        int[] indexIds = interner.intern(index, 0, indexLines);
+        int[] currentIds = interner.intern(current, 0, currentLines);
+        
+        long timeBudgetMs = Registry.intValue(LARGE_FILE_TIME_BUDGET_KEY, 2000);
+        FileDiff.Builder stagedBuilder = FileDiff.builder(baseline, index);
+        FileDiff.Builder unstagedBuilder = FileDiff.builder(index, current);
+        MyersLineDiff.compare(stagedBuilder, baselineIds, 0, indexIds, 0, timeBudgetMs);
+        MyersLineDiff.compare(unstagedBuilder, indexIds, 0, currentIds, 0, timeBudgetMs);
+        FileDiff staged = stagedBuilder.build();
+        FileDiff unstaged = unstagedBuilder.build();
+        
+        // Blocks of all three diffs are sorted, so both cursors only move forward
+        DiffBlock.Stage[] stages = new DiffBlock.Stage[fileDiff.getBlockCount()];
+        int stagedCursor = 0;
+        int unstagedCursor = 0;
+        for (int i = 0; i < stages.length; i++) {
+            int oldStart = fileDiff.getOldStartLine(i);
+            int oldEnd = fileDiff.getOldEndLine(i);
+            while (stagedCursor < staged.getBlockCount() && staged.getOldEndLine(stagedCursor) < oldStart) {
+                stagedCursor++;
+            }
+            boolean hasStaged = false;
+            for (int j = stagedCursor; j < staged.getBlockCount() && staged.getOldStartLine(j) <= oldEnd; j++) {
+                hasStaged |= overlaps(staged.getOldStartLine(j), staged.getOldEndLine(j), oldStart, oldEnd);
+            }
             
-            ComparisonManager comparisonManager = ComparisonManager.getInstance();
-            List<LineFragment> fragments = comparisonManager.compareLines(
-                oldContent, newContent, ComparisonPolicy.DEFAULT, DumbProgressIndicator.INSTANCE
-            );
+            int start = fileDiff.getStartLine(i);
+            int end = fileDiff.getEndLine(i);
+            while (unstagedCursor < unstaged.getBlockCount() && unstaged.getEndLine(unstagedCursor) < start) {
+                unstagedCursor++;
+            }
+            boolean hasUnstaged = false;
+            for (int j = unstagedCursor; j < unstaged.getBlockCount() && unstaged.getStartLine(j) <= end; j++) {
+                hasUnstaged |= overlaps(unstaged.getStartLine(j), unstaged.getEndLine(j), start, end);
+            }
+            
+            stages[i] = hasStaged && hasUnstaged ? DiffBlock.Stage.PARTIALLY_STAGED
+                : hasStaged ? DiffBlock.Stage.STAGED
+                : DiffBlock.Stage.UNSTAGED;
+        }
+        return fileDiff.withStages(stages);
+    }
+    
+    /**
+     * Line ranges overlap. An empty range sits between two lines: it overlaps a non-empty range
+     * only strictly inside it, and another empty range only at the same position.
+     */
+    private static boolean overlaps(int start1, int end1, int start2, int end2) {
+        if (start1 == end1 && start2 == end2) {
+            return start1 == start2;
+        }
+        if (start1 == end1) {
+            return start2 < start1 && start1 < end2;
+        }
+        if (start2 == end2) {
+            return start1 < start2 && start2 < end1;
+        }
+        return start1 < end2 && start2 < end1;
+    }
+    
+    /**
+     * Re-diffs only the lines touched by {@code region}. Blocks outside the region are reused from
+     * {@code previous}, blocks after it are shifted by the region's line delta.
+     *
+     * @param previous diff of the text the region was recorded against
+     */
+    public FileDiff calculateIncrementalDiff(ContentSnapshot oldContent, ContentSnapshot newContent,
+                                             FileDiff previous, DirtyRegion region) {
+        try {
+            int windowStart = region.getStartLine();
+            int windowEnd = region.getOldEndLine();
+            int blockCount = previous.getBlockCount();
             
-            List<DiffBlock> diffBlocks = new ArrayList<>();
-            int blockCounter = 0;
+            // Grow the window over every block it touches, blocks are sorted and disjoint
+            int firstTouched = 0;
+            while (firstTouched < blockCount && previous.getEndLine(firstTouched) < windowStart) {
+                firstTouched++;
+            }
+            int afterTouched = firstTouched;
+            while (afterTouched < blockCount && previous.getStartLine(afterTouched) <= windowEnd) {
+                windowStart = Math.min(windowStart, previous.getStartLine(afterTouched));
+                windowEnd = Math.max(windowEnd, previous.getEndLine(afterTouched));
+                afterTouched++;
+            }
             
-            for (LineFragment fragment : fragments) {
-                DiffBlock.Type type = determineDiffType(fragment);
-                int startLine = fragment.getStartLine2(); // Line in new content
-                int endLine = fragment.getEndLine2();
-                
-                List<String> oldFragmentLines = getLines(oldLines, fragment.getStartLine1(), fragment.getEndLine1());
-                List<String> newFragmentLines = getLines(newLines, fragment.getStartLine2(), fragment.getEndLine2());
-                
-                String blockId = "diff_block_" + (++blockCounter);
-                
-                DiffBlock diffBlock = new DiffBlock(
-                    type, startLine, endLine, 
-                    oldFragmentLines, newFragmentLines, blockId
-                );
-                
-                diffBlocks.add(diffBlock);
+            // Lines outside of blocks map to the baseline by the accumulated line delta
+            int deltaBefore = 0;
+            for (int i = 0; i < firstTouched; i++) {
+                deltaBefore += previous.getLineDelta(i);
+            }
+            int deltaThrough = deltaBefore;
+            for (int i = firstTouched; i < afterTouched; i++) {
+                deltaThrough += previous.getLineDelta(i);
             }
             
-            return diffBlocks;
+            int oldStart = windowStart - deltaBefore;
+            int oldEnd = Math.min(windowEnd - deltaThrough, oldContent.getLineCount());
+            int newEnd = Math.min(windowEnd + region.getLineDelta(), newContent.getLineCount());
             
+            FileDiff.Builder builder = FileDiff.builder(oldContent, newContent);
+            for (int i = 0; i < firstTouched; i++) {
+                builder.addBlock(previous, i, 0);
+            }
+            appendWindowBlocks(builder, oldContent, oldStart, oldEnd, newContent, windowStart, newEnd);
+            for (int i = afterTouched; i < blockCount; i++) {
+                builder.addBlock(previous, i, region.getLineDelta());
+            }
+            return builder.build();
+            
+        } catch (ProcessCanceledException e) {
+            throw e;
         } catch (Exception e) {
-            LOG.error("Failed to calculate diff", e);
-            return Collections.emptyList();
+            LOG.warn("Incremental diff failed, falling back to a full diff", e);
+            return calculateDiff(oldContent, newContent);
         }
     }
     
-    private DiffBlock.Type determineDiffType(LineFragment fragment) {
-        boolean hasOldContent = fragment.getStartLine1() != fragment.getEndLine1();
-        boolean hasNewContent = fragment.getStartLine2() != fragment.getEndLine2();
+    /**
+     * Compares old lines [oldStart, oldEnd) with new lines [newStart, newEnd) and appends the
+     * resulting blocks with absolute line numbers
+     */
+    private void appendWindowBlocks(FileDiff.Builder builder,
+                                    ContentSnapshot oldContent, int oldStart, int oldEnd,
+                                    ContentSnapshot newContent, int newStart, int newEnd) {
+        if (oldStart >= oldEnd && newStart >= newEnd) {
+            return;
+        }
+        
+        if (oldStart >= oldEnd || newStart >= newEnd) {
+            // An empty side still counts as one (empty) line for the comparison manager
+            builder.addBlock(newStart, newEnd, oldStart, oldEnd);
+            return;
+        }
         
-        if (hasOldContent && hasNewContent) {
-            return DiffBlock.Type.MODIFIED;
-        } else if (hasNewContent) {
-            return DiffBlock.Type.ADDED;
-        } else {
-            return DiffBlock.Type.DELETED;
+        if ((oldEnd - oldStart) + (newEnd - newStart) > Registry.intValue(LARGE_FILE_THRESHOLD_KEY, 100_000)) {
+            appendLargeWindowBlocks(builder, oldContent, oldStart, oldEnd, newContent, newStart, newEnd);
+            return;
+        }
+        
+        CharSequence oldWindow = oldContent.getLines(oldStart, oldEnd);
+        CharSequence newWindow = newContent.getLines(newStart, newEnd);
+        
+        ComparisonManager manager = comparisonManager != null ? comparisonManager : ComparisonManager.getInstance();
+        List<LineFragment> fragments = manager.compareLines(
+            oldWindow, newWindow, ComparisonPolicy.DEFAULT, getProgressIndicator()
+        );
+        
+        for (LineFragment fragment : fragments) {
+            builder.addBlock(
+                newStart + fragment.getStartLine2(), newStart + fragment.getEndLine2(),
+                oldStart + fragment.getStartLine1(), oldStart + fragment.getEndLine1()
+            );
         }
     }
     
-    private List<String> getLines(List<String> allLines, int startLine, int endLine) {
-        if (startLine >= allLines.size() || startLine < 0) {
-            return Collections.emptyList();
+    /**
+     * The comparison manager keeps line objects, fragment lists and a quadratic fallback for big
+     * inputs; large windows go through the linear-space diff on interned line ids instead
+     */
+    private void appendLargeWindowBlocks(FileDiff.Builder builder,
+                                         ContentSnapshot oldContent, int oldStart, int oldEnd,
+                                         ContentSnapshot newContent, int newStart, int newEnd) {
+        long timeBudgetMs = Registry.intValue(LARGE_FILE_TIME_BUDGET_KEY, 2000);
+        boolean exact = MyersLineDiff.compare(builder, oldContent, oldStart, oldEnd,
+            newContent, newStart, newEnd, timeBudgetMs);
+        if (!exact) {
+            LOG.info("Large file diff exceeded its time budget of " + timeBudgetMs + " ms, some blocks are coarse");
         }
-        
-        int actualEndLine = Math.min(endLine, allLines.size());
-        return allLines.subList(startLine, actualEndLine);
+    }
+    
+    /**
+     * An empty text has no lines, e.g. the baseline of a file that is not committed yet
+     */
+    private static int countLines(ContentSnapshot content) {
+        return content.getTextLength() == 0 ? 0 : content.getLineCount();
+    }
+    
+    /**
+     * Uses the indicator of the calling background task so that long comparisons can be cancelled
+     */
+    private static ProgressIndicator getProgressIndicator() {
+        ProgressIndicator indicator = ProgressIndicatorProvider.getGlobalProgressIndicator();
+        return indicator != null ? indicator : DumbProgressIndicator.INSTANCE;
     }
 }
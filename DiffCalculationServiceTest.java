@@ -0,0 +1,171 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ContentSnapshot;
+import com.example.diffplugin.model.DiffBlock;
+import com.example.diffplugin.model.DirtyRegion;
+import com.example.diffplugin.model.FileDiff;
+import com.intellij.diff.comparison.ComparisonManagerImpl;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.example.diffplugin.services.DiffTestSupport.assertDescribes;
+import static com.example.diffplugin.services.DiffTestSupport.describe;
+import static com.example.diffplugin.services.DiffTestSupport.snapshot;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DiffCalculationServiceTest {
+    private static final int ROUNDS = 500;
+    
+    private final DiffCalculationService diffService = new DiffCalculationService(new ComparisonManagerImpl());
+    
+    @Test
+    void fullDiffDescribesRandomEdits() {
+        DiffTestSupport data = new DiffTestSupport(1);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<String> baseline = data.repetitiveLines(1 + data.random().nextInt(40));
+            List<String> current = data.applyRandomEdits(baseline, 1 + data.random().nextInt(5), false);
+            
+            assertDescribes(diffService.calculateDiff(snapshot(baseline), snapshot(current)), baseline, current);
+        }
+    }
+    
+    @Test
+    void diffAgainstEmptyBaselineIsOneAddition() {
+        FileDiff fileDiff = diffService.calculateDiff(ContentSnapshot.of(""), ContentSnapshot.of("a\nb"));
+        
+        assertEquals(List.of("0-2/0-0"), describe(fileDiff));
+    }
+    
+    /**
+     * With lines that never repeat the best alignment is unique, so re-diffing a window must give
+     * exactly the blocks of a full diff
+     */
+    @Test
+    void incrementalDiffMatchesFullDiffOnUniqueLines() {
+        DiffTestSupport data = new DiffTestSupport(2);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<String> baseline = data.uniqueLines(1 + data.random().nextInt(40));
+            List<String> previousLines = data.applyRandomEdits(baseline, data.random().nextInt(5), true);
+            FileDiff previous = diffService.calculateDiff(snapshot(baseline), snapshot(previousLines));
+            
+            EditedText edited = editRandomly(data, previousLines, true);
+            FileDiff incremental = diffService.calculateIncrementalDiff(
+                snapshot(baseline), snapshot(edited.lines), previous, edited.region);
+            FileDiff full = diffService.calculateDiff(snapshot(baseline), snapshot(edited.lines));
+            
+            assertEquals(describe(full), describe(incremental), "round " + round);
+        }
+    }
+    
+    /**
+     * Repeated lines allow several equally good alignments, so only check that the result is a
+     * valid diff of the two texts
+     */
+    @Test
+    void incrementalDiffDescribesRandomEditsOnRepetitiveLines() {
+        DiffTestSupport data = new DiffTestSupport(3);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<String> baseline = data.repetitiveLines(1 + data.random().nextInt(40));
+            List<String> previousLines = data.applyRandomEdits(baseline, data.random().nextInt(5), false);
+            FileDiff previous = diffService.calculateDiff(snapshot(baseline), snapshot(previousLines));
+            
+            EditedText edited = editRandomly(data, previousLines, false);
+            FileDiff incremental = diffService.calculateIncrementalDiff(
+                snapshot(baseline), snapshot(edited.lines), previous, edited.region);
+            
+            assertDescribes(incremental, baseline, edited.lines);
+        }
+    }
+    
+    @Test
+    void incrementalDiffShiftsBlocksAfterTheEdit() {
+        List<String> baseline = List.of("a", "b", "c", "d", "e", "f");
+        List<String> previousLines = List.of("a", "b", "c", "d", "e", "F");
+        FileDiff previous = diffService.calculateDiff(snapshot(baseline), snapshot(previousLines));
+        
+        // Two lines inserted after "a"
+        List<String> current = List.of("a", "x", "y", "b", "c", "d", "e", "F");
+        FileDiff incremental = diffService.calculateIncrementalDiff(
+            snapshot(baseline), snapshot(current), previous, new DirtyRegion(1, 1, 3));
+        
+        assertEquals(List.of("1-3/1-1", "7-8/5-6"), describe(incremental));
+    }
+    
+    @Test
+    void incrementalDiffDropsBlockWhenEditRevertsIt() {
+        List<String> baseline = List.of("a", "b", "c");
+        List<String> previousLines = List.of("a", "B", "c");
+        FileDiff previous = diffService.calculateDiff(snapshot(baseline), snapshot(previousLines));
+        
+        FileDiff incremental = diffService.calculateIncrementalDiff(
+            snapshot(baseline), snapshot(baseline), previous, new DirtyRegion(1, 2, 2));
+        
+        assertTrue(incremental.isEmpty(), () -> describe(incremental).toString());
+    }
+    
+    @Test
+    void classifiesStagedUnstagedAndPartiallyStagedBlocks() {
+        List<String> baseline = List.of("a", "b", "c", "d", "e", "f", "g");
+        List<String> index = List.of("a", "B", "c", "d", "e", "X", "g");
+        List<String> current = List.of("a", "B", "c", "D", "e", "F", "g");
+        FileDiff fileDiff = diffService.calculateDiff(snapshot(baseline), snapshot(current));
+        
+        FileDiff classified = diffService.classifyStages(fileDiff, snapshot(index));
+        
+        assertEquals(List.of("1-2/1-2", "3-4/3-4", "5-6/5-6"), describe(classified));
+        assertEquals(DiffBlock.Stage.STAGED, classified.getStage(0));
+        assertEquals(DiffBlock.Stage.UNSTAGED, classified.getStage(1));
+        assertEquals(DiffBlock.Stage.PARTIALLY_STAGED, classified.getStage(2));
+    }
+    
+    @Test
+    void everyBlockIsStagedWhenIndexMatchesCurrent() {
+        List<String> baseline = List.of("a", "b", "c", "d");
+        List<String> current = List.of("a", "B", "c");
+        FileDiff fileDiff = diffService.calculateDiff(snapshot(baseline), snapshot(current));
+        
+        FileDiff classified = diffService.classifyStages(fileDiff, snapshot(current));
+        
+        assertEquals(2, classified.getBlockCount());
+        assertEquals(DiffBlock.Stage.STAGED, classified.getStage(0));
+        assertEquals(DiffBlock.Stage.STAGED, classified.getStage(1));
+    }
+    
+    /**
+     * A staged insertion right after a block only borders it, so the block keeps its own stage
+     */
+    @Test
+    void adjacentStagedInsertionDoesNotStageBlock() {
+        List<String> baseline = List.of("a", "b", "c");
+        List<String> index = List.of("a", "b", "X", "c");
+        List<String> current = List.of("a", "B", "c");
+        FileDiff fileDiff = diffService.calculateDiff(snapshot(baseline), snapshot(current));
+        
+        FileDiff classified = diffService.classifyStages(fileDiff, snapshot(index));
+        
+        assertEquals(List.of("1-2/1-2"), describe(classified));
+        assertEquals(DiffBlock.Stage.UNSTAGED, classified.getStage(0));
+    }
+    
+    /**
+     * Applies one to three random edits, each recorded in the coordinates of the text before it,
+     * like consecutive document events
+     */
+    private static EditedText editRandomly(DiffTestSupport data, List<String> lines, boolean unique) {
+        List<String> current = lines;
+        DirtyRegion region = null;
+        int editCount = 1 + data.random().nextInt(3);
+        for (int i = 0; i < editCount; i++) {
+            DiffTestSupport.Edit edit = data.randomEdit(current, unique);
+            DirtyRegion editRegion = new DirtyRegion(edit.start(), edit.end(), edit.start() + edit.replacement().size());
+            region = region == null ? editRegion : region.union(editRegion);
+            current = edit.applyTo(current);
+        }
+        return new EditedText(current, region);
+    }
+    
+    private record EditedText(List<String> lines, DirtyRegion region) {
+    }
+}
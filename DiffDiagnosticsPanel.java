@@ -0,0 +1,68 @@
+package com.example.diffplugin.ui;
+
+import com.example.diffplugin.services.DiffMetrics;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.components.JBTextArea;
+import com.intellij.util.Alarm;
+import com.intellij.util.ui.JBUI;
+
+import javax.swing.*;
+import java.awt.*;
+
+/**
+ * Live view of the inline diff pipeline metrics, refreshed once a second while visible
+ */
+public class DiffDiagnosticsPanel extends JPanel implements Disposable {
+    private static final int REFRESH_INTERVAL_MS = 1000;
+    
+    private final DiffMetrics metrics;
+    private final JBTextArea reportArea = new JBTextArea();
+    private final Alarm refreshAlarm = new Alarm(Alarm.ThreadToUse.SWING_THREAD, this);
+    
+    public DiffDiagnosticsPanel(Project project) {
+        super(new BorderLayout());
+        this.metrics = project.getService(DiffMetrics.class);
+        initializeUI();
+        scheduleRefresh();
+    }
+    
+    private void initializeUI() {
+        JPanel headerPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        headerPanel.setBorder(JBUI.Borders.empty(5));
+        
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(e -> {
+            metrics.reset();
+            refresh();
+        });
+        headerPanel.add(resetButton);
+        add(headerPanel, BorderLayout.NORTH);
+        
+        reportArea.setEditable(false);
+        reportArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, reportArea.getFont().getSize()));
+        reportArea.setBorder(JBUI.Borders.empty(5));
+        add(new JBScrollPane(reportArea), BorderLayout.CENTER);
+        refresh();
+    }
+    
+    private void scheduleRefresh() {
+        refreshAlarm.addRequest(() -> {
+            // Formatting is cheap but pointless while the tab is hidden
+            if (isShowing()) {
+                refresh();
+            }
+            scheduleRefresh();
+        }, REFRESH_INTERVAL_MS);
+    }
+    
+    private void refresh() {
+        reportArea.setText(metrics.format());
+    }
+    
+    @Override
+    public void dispose() {
+        // The refresh alarm is disposed with this panel
+    }
+}
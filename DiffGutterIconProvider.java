@@ -1,10 +1,8 @@
 package com.example.diffplugin;
 
-import com.example.diffplugin.model.DiffBlock;
-import com.example.diffplugin.services.DiffCalculationService;
-import com.example.diffplugin.services.GitService;
-import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.markup.GutterIconRenderer;
+import com.example.diffplugin.model.FileDiff;
+import com.example.diffplugin.services.DiffModelService;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.PsiFile;
@@ -12,22 +10,25 @@ import com.intellij.codeInsight.daemon.GutterIconNavigationHandler;
 import com.intellij.codeInsight.daemon.LineMarkerInfo;
 import com.intellij.codeInsight.daemon.LineMarkerProvider;
 import com.intellij.openapi.editor.markup.GutterIconRenderer.Alignment;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiElement;
-import com.intellij.util.PlatformIcons;
+import com.intellij.psi.PsiWhiteSpace;
+import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import java.awt.event.MouseEvent;
-import java.util.Collection;
-import java.util.List;
-import java.util.Optional;
 
 public class DiffGutterIconProvider implements LineMarkerProvider {
     
     @Override
     public @Nullable LineMarkerInfo<?> getLineMarkerInfo(@NotNull PsiElement element) {
-        // We'll add line markers for elements that have changes
+        // Markers belong on leaf elements; only the first token of a line gets one
+        if (element.getFirstChild() != null || element instanceof PsiWhiteSpace) {
+            return null;
+        }
+        
         PsiFile psiFile = element.getContainingFile();
         if (psiFile == null) return null;
         
@@ -35,17 +36,19 @@ public class DiffGutterIconProvider implements LineMarkerProvider {
         if (virtualFile == null) return null;
         
         Project project = element.getProject();
-        GitService gitService = project.getService(GitService.class);
+        Document document = PsiDocumentManager.getInstance(project).getDocument(psiFile);
+        if (document == null) return null;
         
-        if (!gitService.isUnderGit(virtualFile)) {
-            return null;
-        }
-        
-        // Check if this line has changes
-        int lineNumber = getLineNumber(element);
+        int lineNumber = getFirstTokenLine(document, element);
         if (lineNumber < 0) return null;
         
-        if (hasChangesAtLine(project, virtualFile, lineNumber)) {
+        // Only the model's current diff, computing one here would run git and a full diff inside
+        // the highlighting pass; the inline diff pipeline keeps the model up to date and restarts
+        // highlighting whenever it applies a new diff
+        DiffModelService diffModel = project.getService(DiffModelService.class);
+        FileDiff fileDiff = diffModel.getCachedFileDiff(document);
+        
+        if (fileDiff != null && fileDiff.hasChangesAtLine(lineNumber)) {
             return new LineMarkerInfo<>(
                 element,
                 element.getTextRange(),
@@ -60,36 +63,19 @@ public class DiffGutterIconProvider implements LineMarkerProvider {
         return null;
     }
     
-    private int getLineNumber(PsiElement element) {
-        // Get the line number for the element
-        // This is a simplified implementation
-        return element.getTextOffset();
-    }
-    
-    private boolean hasChangesAtLine(Project project, VirtualFile file, int lineNumber) {
-        GitService gitService = project.getService(GitService.class);
-        DiffCalculationService diffService = project.getService(DiffCalculationService.class);
-        
-        Optional<String> lastCommitContent = gitService.getLastCommitContent(file);
-        Optional<String> currentContent = gitService.getCurrentContent(file);
-        
-        if (lastCommitContent.isEmpty() || currentContent.isEmpty()) {
-            return false;
-        }
-        
-        List<DiffBlock> diffBlocks = diffService.calculateDiff(
-            lastCommitContent.get(), 
-            currentContent.get()
-        );
-        
-        // Check if any diff block contains this line
-        for (DiffBlock block : diffBlocks) {
-            if (lineNumber >= block.getStartLine() && lineNumber <= block.getEndLine()) {
-                return true;
-            }
+    /**
+     * Returns the line of the element if it is the first token on that line, -1 otherwise
+     */
+    private int getFirstTokenLine(Document document, PsiElement element) {
+        int offset = element.getTextRange().getStartOffset();
+        if (offset < 0 || offset > document.getTextLength()) {
+            return -1;
         }
         
-        return false;
+        int lineNumber = document.getLineNumber(offset);
+        int firstNonBlank = CharArrayUtil.shiftForward(
+            document.getImmutableCharSequence(), document.getLineStartOffset(lineNumber), " \t");
+        return firstNonBlank == offset ? lineNumber : -1;
     }
     
     private static class DiffNavigationHandler implements GutterIconNavigationHandler<PsiElement> {
@@ -0,0 +1,151 @@
+package com.example.diffplugin.ui;
+
+import com.example.diffplugin.model.DiffBlock;
+import com.intellij.util.ui.JBUI;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Gutter icons of the three block types, shared by all renderers.
+ * Each icon is rendered once per device pixel size into an image and afterwards only blitted,
+ * so painting a gutter full of blocks allocates no fonts, graphics copies or strings.
+ * Unstaged blocks are filled, staged blocks outlined, and partially staged ones outlined with a dot.
+ */
+public final class DiffIcons {
+    public static final Color ADDED_COLOR = new Color(76, 175, 80);
+    public static final Color DELETED_COLOR = new Color(244, 67, 54);
+    public static final Color MODIFIED_COLOR = new Color(255, 152, 0);
+    
+    public static final Icon ADDED = new BlockTypeIcon(ADDED_COLOR, "+", null);
+    public static final Icon DELETED = new BlockTypeIcon(DELETED_COLOR, "-", null);
+    public static final Icon MODIFIED = new BlockTypeIcon(MODIFIED_COLOR, "~", null);
+    
+    private static final Map<DiffBlock.Type, Icon> STAGED_ICONS = createIcons(DiffBlock.Stage.STAGED);
+    private static final Map<DiffBlock.Type, Icon> PARTIALLY_STAGED_ICONS = createIcons(DiffBlock.Stage.PARTIALLY_STAGED);
+    
+    private DiffIcons() {
+    }
+    
+    /**
+     * Icon of the block's type in the variant of its stage
+     */
+    public static Icon forBlock(DiffBlock block) {
+        DiffBlock.Stage stage = block.getStage();
+        if (stage == DiffBlock.Stage.STAGED) {
+            return STAGED_ICONS.get(block.getType());
+        } else if (stage == DiffBlock.Stage.PARTIALLY_STAGED) {
+            return PARTIALLY_STAGED_ICONS.get(block.getType());
+        }
+        return forType(block.getType());
+    }
+    
+    public static Icon forType(DiffBlock.Type type) {
+        return switch (type) {
+            case ADDED -> ADDED;
+            case DELETED -> DELETED;
+            case MODIFIED -> MODIFIED;
+        };
+    }
+    
+    public static Color colorOf(DiffBlock.Type type) {
+        return switch (type) {
+            case ADDED -> ADDED_COLOR;
+            case DELETED -> DELETED_COLOR;
+            case MODIFIED -> MODIFIED_COLOR;
+        };
+    }
+    
+    private static Map<DiffBlock.Type, Icon> createIcons(DiffBlock.Stage stage) {
+        Map<DiffBlock.Type, Icon> icons = new EnumMap<>(DiffBlock.Type.class);
+        for (DiffBlock.Type type : DiffBlock.Type.values()) {
+            icons.put(type, new BlockTypeIcon(colorOf(type), symbolOf(type), stage));
+        }
+        return icons;
+    }
+    
+    private static String symbolOf(DiffBlock.Type type) {
+        return switch (type) {
+            case ADDED -> "+";
+            case DELETED -> "-";
+            case MODIFIED -> "~";
+        };
+    }
+    
+    private static final class BlockTypeIcon implements Icon {
+        private static final int SIZE = 16;
+        private static final Font SYMBOL_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 8);
+        
+        private final Color color;
+        private final String symbol;
+        private final DiffBlock.Stage stage;
+        // Pre-rendered images by their size in device pixels, one per scale in use
+        private final ConcurrentMap<Integer, BufferedImage> images = new ConcurrentHashMap<>(4);
+        
+        BlockTypeIcon(Color color, String symbol, DiffBlock.Stage stage) {
+            this.color = color;
+            this.symbol = symbol;
+            this.stage = stage;
+        }
+        
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            int size = getIconWidth();
+            double deviceScale = g instanceof Graphics2D g2 ? g2.getTransform().getScaleX() : 1;
+            int pixelSize = (int) Math.ceil(size * deviceScale);
+            BufferedImage image = images.get(pixelSize);
+            if (image == null) {
+                image = images.computeIfAbsent(pixelSize, key -> render(size, key));
+            }
+            g.drawImage(image, x, y, size, size, null);
+        }
+        
+        private BufferedImage render(int size, int pixelSize) {
+            BufferedImage image = new BufferedImage(pixelSize, pixelSize, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g2 = image.createGraphics();
+            try {
+                double scale = (double) pixelSize / size;
+                g2.transform(AffineTransform.getScaleInstance(scale, scale));
+                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                
+                g2.setColor(color);
+                boolean staged = stage == DiffBlock.Stage.STAGED || stage == DiffBlock.Stage.PARTIALLY_STAGED;
+                if (staged) {
+                    g2.setStroke(new BasicStroke(size / 10f));
+                    g2.drawRoundRect(2, 2, size - 5, size - 5, 4, 4);
+                } else {
+                    g2.fillRoundRect(2, 2, size - 4, size - 4, 4, 4);
+                }
+                if (stage == DiffBlock.Stage.PARTIALLY_STAGED) {
+                    int dot = size / 4;
+                    g2.fillOval(size - dot - 1, size - dot - 1, dot, dot);
+                }
+                
+                g2.setColor(staged ? color : Color.WHITE);
+                g2.setFont(SYMBOL_FONT.deriveFont(SYMBOL_FONT.getSize2D() * size / SIZE));
+                FontMetrics fm = g2.getFontMetrics();
+                g2.drawString(symbol, (size - fm.stringWidth(symbol)) / 2f, (size + fm.getAscent()) / 2f - 1);
+            } finally {
+                g2.dispose();
+            }
+            return image;
+        }
+        
+        @Override
+        public int getIconWidth() {
+            return JBUI.scale(SIZE);
+        }
+        
+        @Override
+        public int getIconHeight() {
+            return JBUI.scale(SIZE);
+        }
+    }
+}
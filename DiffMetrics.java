@@ -0,0 +1,138 @@
+package com.example.diffplugin.services;
+
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.project.Project;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies and counters of the inline diff pipeline, shown in the diagnostics tab of the tool
+ * window and dumped to the log on request. Recording is cheap enough to stay always on.
+ */
+@Service
+public final class DiffMetrics {
+    public enum Stage {
+        BASELINE("Baseline fetch"),
+        CURRENT_CONTENT("Current content"),
+        DIFF("Diff calculation"),
+        RENDER("Highlighter update"),
+        UPDATE("End-to-end update");
+        
+        private final String displayName;
+        
+        Stage(String displayName) {
+            this.displayName = displayName;
+        }
+        
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+    
+    public enum Counter {
+        UPDATES_REQUESTED("Updates requested"),
+        UPDATES_APPLIED("Updates applied"),
+        UPDATES_CANCELLED("Computations cancelled or restarted"),
+        UPDATES_SKIPPED("Updates skipped as outdated"),
+        DIFF_CACHE_HITS("Diffs reused from the model"),
+        INCREMENTAL_DIFFS("Incremental diffs"),
+        FULL_DIFFS("Full diffs"),
+        STORED_DIFFS("Diffs loaded from the snapshot store"),
+        UNCHANGED_FILES("Files found unchanged by blob id"),
+        HIGHLIGHTERS_CREATED("Highlighters created"),
+        HIGHLIGHTERS_REUSED("Highlighters reused"),
+        HIGHLIGHTERS_REMOVED("Highlighters removed");
+        
+        private final String displayName;
+        
+        Counter(String displayName) {
+            this.displayName = displayName;
+        }
+        
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+    
+    private final Project project;
+    private final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    private final Map<Counter, LongAdder> counters = new EnumMap<>(Counter.class);
+    
+    public DiffMetrics(Project project) {
+        this.project = project;
+        for (Stage stage : Stage.values()) {
+            latencies.put(stage, new LatencyHistogram());
+        }
+        for (Counter counter : Counter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+    
+    /**
+     * Records the time elapsed since {@code startNanos}, as returned by {@link System#nanoTime()}
+     */
+    public void recordSince(Stage stage, long startNanos) {
+        latencies.get(stage).record(System.nanoTime() - startNanos);
+    }
+    
+    public void increment(Counter counter) {
+        counters.get(counter).increment();
+    }
+    
+    public void add(Counter counter, long delta) {
+        if (delta != 0) {
+            counters.get(counter).add(delta);
+        }
+    }
+    
+    public LatencyHistogram getLatency(Stage stage) {
+        return latencies.get(stage);
+    }
+    
+    public long getCount(Counter counter) {
+        return counters.get(counter).sum();
+    }
+    
+    public void reset() {
+        latencies.values().forEach(LatencyHistogram::reset);
+        counters.values().forEach(LongAdder::reset);
+    }
+    
+    /**
+     * Plain-text report of all stages and counters, as shown in the diagnostics tab
+     */
+    public String format() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-22s %8s %10s %10s %10s %10s %10s%n",
+            "Stage", "Count", "Mean", "p50", "p95", "p99", "Max"));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = latencies.get(stage);
+            report.append(String.format("%-22s %8d %10s %10s %10s %10s %10s%n",
+                stage.getDisplayName(), histogram.getCount(),
+                formatNanos(histogram.getMeanNanos()),
+                formatNanos(histogram.getPercentileNanos(50)),
+                formatNanos(histogram.getPercentileNanos(95)),
+                formatNanos(histogram.getPercentileNanos(99)),
+                formatNanos(histogram.getMaxNanos())));
+        }
+        
+        report.append(System.lineSeparator());
+        for (Counter counter : Counter.values()) {
+            report.append(String.format("%-36s %10d%n", counter.getDisplayName(), getCount(counter)));
+        }
+        report.append(String.format("%-36s %10d%n", "Live highlighters",
+            project.getService(InlineDiffService.class).getHighlighterCount()));
+        report.append(String.format("%-36s %10s%n", "Baseline cache",
+            project.getService(GitService.class).getBaselineCacheStats()));
+        return report.toString();
+    }
+    
+    private static String formatNanos(long nanos) {
+        if (nanos < 1_000_000) {
+            return String.format("%.0f µs", nanos / 1_000.0);
+        }
+        return String.format("%.1f ms", nanos / 1_000_000.0);
+    }
+}
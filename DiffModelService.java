@@ -0,0 +1,439 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ContentSnapshot;
+import com.example.diffplugin.model.DirtyRegion;
+import com.example.diffplugin.model.FileDiff;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.containers.CollectionFactory;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Project-wide model of per-document diffs, shared by the inline highlighters and the gutter
+ * line markers. A diff is computed at most once per document modification stamp; edits made
+ * after that are tracked so the next computation only re-diffs the touched lines.
+ */
+@Service
+public final class DiffModelService {
+    private static final Logger LOG = Logger.getInstance(DiffModelService.class);
+    
+    private final Project project;
+    private final Map<Document, Entry> entries = CollectionFactory.createConcurrentWeakMap();
+    private final Map<Document, Set<String>> acceptedBlocks = CollectionFactory.createConcurrentWeakMap();
+    // Git blob id of each document's content, valid for one modification stamp
+    private final Map<Document, BlobId> currentBlobIds = CollectionFactory.createConcurrentWeakMap();
+    // Document being edited by rejectBlocks, its change is already reflected in the model
+    private Document updatingDocument;
+    // Bumped by invalidateAll, diffs computed before that are not cached
+    private volatile int generation;
+    
+    public DiffModelService(Project project) {
+        this.project = project;
+    }
+    
+    /**
+     * Loads what the file's diff needs from git into the caches: the baseline content, and the
+     * index content in staged mode. A file whose content has the baseline's blob id needs neither,
+     * only its blob id is looked up. Runs git, so it must be called on a background thread outside
+     * of read actions; {@link #getFileDiff} itself only reads caches.
+     */
+    public void prefetch(VirtualFile file) {
+        GitService gitService = project.getService(GitService.class);
+        if (!file.isValid() || !gitService.isUnderGit(file)) {
+            return;
+        }
+        long stageStart = System.nanoTime();
+        if (!isUnchanged(file, gitService)) {
+            gitService.getBaselineContent(file);
+            if (gitService.isStagedModeEnabled()) {
+                gitService.getIndexContent(file);
+            }
+        }
+        getMetrics().recordSince(DiffMetrics.Stage.BASELINE, stageStart);
+    }
+    
+    /**
+     * Whether the file's document has the baseline's blob id. The tree may be listed here; the
+     * document's text is taken in a short read action and hashed outside of it.
+     */
+    private boolean isUnchanged(VirtualFile file, GitService gitService) {
+        String baselineBlobId = gitService.findBaselineBlobId(file);
+        if (baselineBlobId == null) {
+            return false;
+        }
+        Document document = ReadAction.compute(() -> FileDocumentManager.getInstance().getDocument(file));
+        if (document == null) {
+            return false;
+        }
+        ContentSnapshot currentContent = ReadAction.compute(() -> ContentSnapshot.of(document));
+        return baselineBlobId.equals(getCurrentBlobId(document, currentContent, file));
+    }
+    
+    /**
+     * Returns the diff for the current state of the document, computing it if the cached one is
+     * stale. Must be called under a read action. Never runs git: returns null for files that
+     * cannot be diffed or whose baseline was not fetched by {@link #prefetch} yet.
+     */
+    public @Nullable FileDiff getFileDiff(Document document, VirtualFile file) {
+        Entry entry = entries.get(document);
+        if (entry != null && entry.pendingRegion == null
+            && entry.fileDiff.getModificationStamp() == document.getModificationStamp()) {
+            getMetrics().increment(DiffMetrics.Counter.DIFF_CACHE_HITS);
+            return entry.fileDiff;
+        }
+        
+        int computeGeneration = generation;
+        long computeStart = System.nanoTime();
+        FileDiff fileDiff = computeFileDiff(document, file, entry);
+        if (fileDiff != null && computeGeneration == generation) {
+            publish(document, fileDiff, System.nanoTime() - computeStart);
+        } else {
+            entries.remove(document);
+        }
+        return fileDiff;
+    }
+    
+    /**
+     * Returns the cached diff if it still describes the document, without computing anything
+     */
+    public @Nullable FileDiff getCachedFileDiff(Document document) {
+        Entry entry = entries.get(document);
+        if (entry == null || entry.pendingRegion != null
+            || entry.fileDiff.getModificationStamp() != document.getModificationStamp()) {
+            return null;
+        }
+        return entry.fileDiff;
+    }
+    
+    /**
+     * How long the last diff of the document took to compute, or -1 if it was never diffed
+     */
+    public long getLastComputeNanos(Document document) {
+        Entry entry = entries.get(document);
+        return entry != null ? entry.computeNanos : -1;
+    }
+    
+    /**
+     * Records the lines touched by a document change so that the next computation only re-diffs them.
+     * Documents that were never diffed are ignored.
+     */
+    public void documentChanged(DocumentEvent event) {
+        if (isUpdatingModel(event.getDocument())) {
+            return;
+        }
+        entries.computeIfPresent(event.getDocument(),
+            (document, entry) -> entry.withChange(DirtyRegion.fromEvent(event)));
+    }
+    
+    /**
+     * Drops every cached diff, e.g. after the baseline revision changed
+     */
+    public void invalidateAll() {
+        generation++;
+        entries.clear();
+    }
+    
+    /**
+     * True while the document is edited by the model itself, such edits need no re-diff
+     */
+    public boolean isUpdatingModel(Document document) {
+        return updatingDocument == document;
+    }
+    
+    /**
+     * Reverts a block to its baseline text and updates the cached diff in place: the block is
+     * dropped and the blocks after it move by its line delta, nothing is fetched or re-diffed.
+     * Works on the cached diff, so it never diffs inside the write command.
+     * Must be called inside a write command.
+     *
+     * @return false if the document has no current cached diff or it has no such block
+     */
+    public boolean rejectBlock(Document document, String blockId) {
+        FileDiff fileDiff = getCachedFileDiff(document);
+        return fileDiff != null && rejectBlocks(document, fileDiff, blockId::equals) > 0;
+    }
+    
+    /**
+     * Reverts all blocks whose id matches the filter as one document edit sequence and updates
+     * the cached diff once. Blocks are replaced bottom-up, so the offsets of the blocks above stay
+     * valid without re-resolving them. The diff is computed beforehand, outside of the write
+     * command; nothing is reverted if the document changed since. Must be called inside a write
+     * command.
+     *
+     * @return the number of blocks reverted
+     */
+    public int rejectBlocks(Document document, FileDiff fileDiff, Predicate<String> blockFilter) {
+        if (fileDiff.getModificationStamp() != document.getModificationStamp()) {
+            return 0;
+        }
+        
+        int blockCount = fileDiff.getBlockCount();
+        boolean[] rejected = new boolean[blockCount];
+        int rejectedCount = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (blockFilter.test(fileDiff.getBlockId(i))) {
+                rejected[i] = true;
+                rejectedCount++;
+            }
+        }
+        if (rejectedCount == 0) {
+            return 0;
+        }
+        
+        ContentSnapshot baseline = fileDiff.getBaseline();
+        ContentSnapshot current = fileDiff.getCurrentContent();
+        updatingDocument = document;
+        try {
+            for (int i = blockCount - 1; i >= 0; i--) {
+                if (!rejected[i]) {
+                    continue;
+                }
+                TextRange currentRange = current.getLinesRange(fileDiff.getStartLine(i), fileDiff.getEndLine(i));
+                TextRange baselineRange = baseline.getLinesRange(fileDiff.getOldStartLine(i), fileDiff.getOldEndLine(i));
+                document.replaceString(currentRange.getStartOffset(), currentRange.getEndOffset(),
+                    baselineRange.subSequence(baseline.getText()));
+            }
+        } finally {
+            updatingDocument = null;
+        }
+        
+        // Kept blocks move by the deltas of the rejected blocks above them
+        FileDiff.Builder builder = FileDiff.builder(baseline, ContentSnapshot.of(document));
+        int lineShift = 0;
+        for (int i = 0; i < blockCount; i++) {
+            if (rejected[i]) {
+                lineShift -= fileDiff.getLineDelta(i);
+            } else {
+                builder.addBlock(fileDiff, i, lineShift);
+            }
+        }
+        publish(document, builder.build(), getLastComputeNanos(document));
+        return rejectedCount;
+    }
+    
+    /**
+     * Hides a block from the inline view. The block stays in the model, its text still differs
+     * from the baseline; as ids are content based it stays hidden across re-diffs.
+     */
+    public void acceptBlock(Document document, String blockId) {
+        acceptedBlocks.computeIfAbsent(document, d -> ConcurrentHashMap.newKeySet()).add(blockId);
+    }
+    
+    /**
+     * Hides all blocks of a precomputed diff of the document whose id matches the filter.
+     * Nothing is accepted if the document changed since the diff was computed.
+     *
+     * @return the number of blocks newly accepted
+     */
+    public int acceptBlocks(Document document, FileDiff fileDiff, Predicate<String> blockFilter) {
+        if (fileDiff.getModificationStamp() != document.getModificationStamp()) {
+            return 0;
+        }
+        
+        Set<String> accepted = acceptedBlocks.computeIfAbsent(document, d -> ConcurrentHashMap.newKeySet());
+        int acceptedCount = 0;
+        for (int i = 0; i < fileDiff.getBlockCount(); i++) {
+            String blockId = fileDiff.getBlockId(i);
+            if (blockFilter.test(blockId) && accepted.add(blockId)) {
+                acceptedCount++;
+            }
+        }
+        return acceptedCount;
+    }
+    
+    public Set<String> getAcceptedBlockIds(Document document) {
+        return acceptedBlocks.getOrDefault(document, Collections.emptySet());
+    }
+    
+    private void publish(Document document, FileDiff fileDiff, long computeNanos) {
+        // Under a read action the stamp cannot move, so no recorded change is lost here
+        if (document.getModificationStamp() == fileDiff.getModificationStamp()) {
+            entries.put(document, new Entry(fileDiff, null, computeNanos));
+        }
+    }
+    
+    private @Nullable FileDiff computeFileDiff(Document document, VirtualFile file, @Nullable Entry previous) {
+        try {
+            GitService gitService = project.getService(GitService.class);
+            if (!file.isValid() || !gitService.isUnderGit(file)) {
+                return null;
+            }
+            
+            if (previous == null || previous.pendingRegion == null) {
+                FileDiff unchanged = getDiffIfUnchanged(document, file, gitService);
+                if (unchanged != null) {
+                    return unchanged;
+                }
+            }
+            
+            DiffMetrics metrics = getMetrics();
+            ContentSnapshot baseline = gitService.getCachedBaselineContent(file);
+            if (baseline == null) {
+                return null;
+            }
+            ProgressManager.checkCanceled();
+            
+            long stageStart = System.nanoTime();
+            ContentSnapshot currentContent = ContentSnapshot.of(document);
+            metrics.recordSince(DiffMetrics.Stage.CURRENT_CONTENT, stageStart);
+            DiffCalculationService diffService = project.getService(DiffCalculationService.class);
+            
+            stageStart = System.nanoTime();
+            FileDiff fileDiff;
+            // The cache hands out the same instance for as long as HEAD does not move
+            if (previous != null && previous.pendingRegion != null && previous.fileDiff.getBaseline() == baseline) {
+                metrics.increment(DiffMetrics.Counter.INCREMENTAL_DIFFS);
+                fileDiff = diffService.calculateIncrementalDiff(
+                    baseline, currentContent, previous.fileDiff, previous.pendingRegion
+                );
+            } else if (baseline.contentEquals(currentContent)) {
+                // Skip if contents are identical
+                fileDiff = FileDiff.builder(baseline, currentContent).build();
+            } else {
+                fileDiff = loadStoredDiff(file, baseline, currentContent);
+                if (fileDiff == null) {
+                    metrics.increment(DiffMetrics.Counter.FULL_DIFFS);
+                    fileDiff = diffService.calculateDiff(baseline, currentContent);
+                    storeDiff(file, fileDiff);
+                }
+            }
+            if (gitService.isStagedModeEnabled() && !fileDiff.isEmpty()) {
+                // Fetched by prefetch, usually together with the baseline
+                ContentSnapshot index = gitService.getCachedIndexContent(file);
+                if (index != null) {
+                    fileDiff = diffService.classifyStages(fileDiff, index);
+                }
+            }
+            metrics.recordSince(DiffMetrics.Stage.DIFF, stageStart);
+            return fileDiff;
+            
+        } catch (ProcessCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            LOG.warn("Failed to compute diff for file: " + file.getPath(), e);
+            return null;
+        }
+    }
+    
+    /**
+     * Empty diff if the document's content has the baseline's blob id, decided without fetching
+     * the baseline content. Skipped while the blob id is not cached, the revision tree is never
+     * listed here but by {@link #prefetch}. Hashing runs at most once per modification stamp. The document then
+     * equals the baseline and serves as both sides; the first edit gets a regular diff, because
+     * the cached baseline is a different instance.
+     */
+    private @Nullable FileDiff getDiffIfUnchanged(Document document, VirtualFile file, GitService gitService) {
+        String baselineBlobId = gitService.getBaselineBlobId(file);
+        if (baselineBlobId == null) {
+            return null;
+        }
+        
+        ContentSnapshot currentContent = ContentSnapshot.of(document);
+        if (!baselineBlobId.equals(getCurrentBlobId(document, currentContent, file))) {
+            return null;
+        }
+        getMetrics().increment(DiffMetrics.Counter.UNCHANGED_FILES);
+        return FileDiff.builder(currentContent, currentContent).build();
+    }
+    
+    /**
+     * Diff persisted for this baseline blob and current text, e.g. by the previous session
+     */
+    private @Nullable FileDiff loadStoredDiff(VirtualFile file, ContentSnapshot baseline, ContentSnapshot currentContent) {
+        String blobId = project.getService(GitService.class).getBaselineBlobId(file);
+        if (blobId == null) {
+            return null;
+        }
+        int[] ranges = project.getService(DiffSnapshotStore.class)
+            .getDiffRanges(blobId, DiffSnapshotStore.contentHash(currentContent.getText()));
+        if (ranges == null || ranges.length % 4 != 0) {
+            return null;
+        }
+        
+        FileDiff.Builder builder = FileDiff.builder(baseline, currentContent);
+        int lastEnd = 0;
+        int lastOldEnd = 0;
+        for (int i = 0; i < ranges.length; i += 4) {
+            // Guards against hash collisions and stale records: blocks must be ordered and in bounds
+            if (ranges[i] < lastEnd || ranges[i + 1] < ranges[i] || ranges[i + 1] > currentContent.getLineCount()
+                || ranges[i + 2] < lastOldEnd || ranges[i + 3] < ranges[i + 2] || ranges[i + 3] > baseline.getLineCount()) {
+                return null;
+            }
+            builder.addBlock(ranges[i], ranges[i + 1], ranges[i + 2], ranges[i + 3]);
+            lastEnd = ranges[i + 1];
+            lastOldEnd = ranges[i + 3];
+        }
+        getMetrics().increment(DiffMetrics.Counter.STORED_DIFFS);
+        return builder.build();
+    }
+    
+    private void storeDiff(VirtualFile file, FileDiff fileDiff) {
+        String blobId = project.getService(GitService.class).getBaselineBlobId(file);
+        if (blobId == null) {
+            return;
+        }
+        int[] ranges = new int[fileDiff.getBlockCount() * 4];
+        for (int i = 0; i < fileDiff.getBlockCount(); i++) {
+            ranges[i * 4] = fileDiff.getStartLine(i);
+            ranges[i * 4 + 1] = fileDiff.getEndLine(i);
+            ranges[i * 4 + 2] = fileDiff.getOldStartLine(i);
+            ranges[i * 4 + 3] = fileDiff.getOldEndLine(i);
+        }
+        project.getService(DiffSnapshotStore.class)
+            .putDiffRanges(blobId, DiffSnapshotStore.contentHash(fileDiff.getCurrentContent().getText()), ranges);
+    }
+    
+    private DiffMetrics getMetrics() {
+        return project.getService(DiffMetrics.class);
+    }
+    
+    /**
+     * Blob id of a document snapshot, hashed at most once per modification stamp
+     */
+    private String getCurrentBlobId(Document document, ContentSnapshot currentContent, VirtualFile file) {
+        BlobId blobId = currentBlobIds.get(document);
+        if (blobId == null || blobId.modificationStamp() != currentContent.getModificationStamp()) {
+            blobId = new BlobId(currentContent.getModificationStamp(), GitBlobId.compute(currentContent.getText(), file));
+            currentBlobIds.put(document, blobId);
+        }
+        return blobId.id();
+    }
+    
+    private record BlobId(long modificationStamp, String id) {
+    }
+    
+    /**
+     * Last computed diff of a document together with the edits made since it was computed
+     */
+    private static final class Entry {
+        private final FileDiff fileDiff;
+        private final @Nullable DirtyRegion pendingRegion;
+        private final long computeNanos;
+        
+        Entry(FileDiff fileDiff, @Nullable DirtyRegion pendingRegion, long computeNanos) {
+            this.fileDiff = fileDiff;
+            this.pendingRegion = pendingRegion;
+            this.computeNanos = computeNanos;
+        }
+        
+        Entry withChange(DirtyRegion change) {
+            DirtyRegion region = pendingRegion != null ? pendingRegion.union(change) : change;
+            return new Entry(fileDiff, region, computeNanos);
+        }
+    }
+}
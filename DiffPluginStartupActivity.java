@@ -1,17 +1,58 @@
 package com.example.diffplugin.startup;
 
-import com.example.diffplugin.listeners.DocumentChangeListener;
-import com.intellij.openapi.editor.EditorFactory;
+import com.example.diffplugin.services.GitService;
+import com.example.diffplugin.services.InlineDiffService;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.startup.StartupActivity;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Warms up the inline diffs of the editors restored with the project, so they show without
+ * waiting for the first edit. Runs once indexing is done, selected editors first, on a small
+ * pool so that opening the project is not slowed down; pending work expires with the project.
+ */
 public class DiffPluginStartupActivity implements StartupActivity {
+    private static final int MAX_PARALLELISM = 2;
+    private static final ExecutorService WARM_UP_EXECUTOR =
+        AppExecutorUtil.createBoundedApplicationPoolExecutor("UnifiedDiff Warm-up", MAX_PARALLELISM);
     
     @Override
     public void runActivity(@NotNull Project project) {
-        // Register the document change listener when the project starts
-        DocumentChangeListener listener = new DocumentChangeListener();
-        EditorFactory.getInstance().getEventMulticaster().addDocumentListener(listener, project);
+        DumbService.getInstance(project).runWhenSmart(() -> warmUpOpenEditors(project));
+    }
+    
+    private static void warmUpOpenEditors(Project project) {
+        if (project.isDisposed()) {
+            return;
+        }
+        
+        FileEditorManager editorManager = FileEditorManager.getInstance(project);
+        // The pool runs tasks in submission order, so the selected editors come first
+        Set<VirtualFile> files = new LinkedHashSet<>(Arrays.asList(editorManager.getSelectedFiles()));
+        files.addAll(Arrays.asList(editorManager.getOpenFiles()));
+        
+        GitService gitService = project.getService(GitService.class);
+        InlineDiffService inlineDiff = project.getService(InlineDiffService.class);
+        for (VirtualFile file : files) {
+            if (!file.isValid() || !file.isInLocalFileSystem() || file.getFileType().isBinary()
+                || !gitService.isUnderGit(file)) {
+                continue;
+            }
+            Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+            if (document != null) {
+                inlineDiff.updateInlineDiff(document, file, WARM_UP_EXECUTOR);
+            }
+        }
     }
 }
@@ -0,0 +1,384 @@
+package com.example.diffplugin.services;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectUtil;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Baselines and diff results persisted in the project's system directory, so that editors
+ * reopened after a restart get their diff without starting git or diffing again.
+ * <p>
+ * The store is a single append-only file of checksummed records, memory-mapped when opened.
+ * Three kinds of records are kept: the blob id of a path at a revision, the decoded text of a
+ * blob and the block ranges of a blob diffed against a current content hash. A torn or corrupt
+ * tail left by a crash is cut off on the next open; the file is compacted to its newest records
+ * when it grows past its limit, by writing a new file and atomically moving it into place.
+ */
+@Service
+public final class DiffSnapshotStore implements Disposable {
+    private static final Logger LOG = Logger.getInstance(DiffSnapshotStore.class);
+    private static final String FILE_NAME = "snapshots.dat";
+    private static final long MAGIC = 0x5544494653544f52L; // "UDIFSTOR"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = Long.BYTES + Integer.BYTES;
+    // Record length, checksum, type and key length
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + Integer.BYTES + 1 + Short.BYTES;
+    private static final long MAX_FILE_BYTES = 64L * 1024 * 1024;
+    private static final long COMPACTION_THRESHOLD_BYTES = MAX_FILE_BYTES / 4 * 3;
+    private static final int MAX_RECORD_BYTES = 4 * 1024 * 1024;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    private static final byte TREE_ENTRY = 1;
+    private static final byte BLOB_TEXT = 2;
+    private static final byte DIFF_RANGES = 3;
+    
+    private final Supplier<Path> directory;
+    // Type and key of each record to where its payload starts, later records win
+    private final Map<String, Location> index = new HashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long fileSize;
+    private boolean opened;
+    
+    public DiffSnapshotStore(Project project) {
+        this(() -> ProjectUtil.getProjectCachePath(project, "unified-diff"));
+    }
+    
+    /**
+     * Lets tests keep the store in a directory of their own
+     */
+    DiffSnapshotStore(Supplier<Path> directory) {
+        this.directory = directory;
+    }
+    
+    /**
+     * Blob id of a path at a revision, as recorded when its baseline was last read from git
+     */
+    public synchronized @Nullable String getBlobId(String rootPath, String revision, String relativePath) {
+        ByteBuffer payload = read(TREE_ENTRY, treeKey(rootPath, revision, relativePath));
+        return payload != null ? StandardCharsets.US_ASCII.decode(payload).toString() : null;
+    }
+    
+    public synchronized void putBlobId(String rootPath, String revision, String relativePath, String blobId) {
+        String key = treeKey(rootPath, revision, relativePath);
+        if (!blobId.equals(getBlobId(rootPath, revision, relativePath))) {
+            append(TREE_ENTRY, key, blobId.getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+    
+    /**
+     * Decoded text of a blob, with line separators normalized as in the document
+     */
+    public synchronized @Nullable CharSequence getBlobText(String blobId) {
+        ByteBuffer payload = read(BLOB_TEXT, blobId);
+        return payload != null ? StandardCharsets.UTF_8.decode(payload).toString() : null;
+    }
+    
+    public synchronized void putBlobText(String blobId, CharSequence text) {
+        if (!contains(BLOB_TEXT, blobId)) {
+            append(BLOB_TEXT, blobId, text.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+    
+    /**
+     * Block ranges of the blob diffed against a content with the given {@link #contentHash},
+     * four ints per block as kept by {@code FileDiff}
+     */
+    public synchronized int @Nullable [] getDiffRanges(String blobId, long contentHash) {
+        ByteBuffer payload = read(DIFF_RANGES, diffKey(blobId, contentHash));
+        if (payload == null) {
+            return null;
+        }
+        int[] ranges = new int[payload.remaining() / Integer.BYTES];
+        payload.asIntBuffer().get(ranges);
+        return ranges;
+    }
+    
+    public synchronized void putDiffRanges(String blobId, long contentHash, int[] ranges) {
+        String key = diffKey(blobId, contentHash);
+        if (!contains(DIFF_RANGES, key)) {
+            ByteBuffer payload = ByteBuffer.allocate(ranges.length * Integer.BYTES);
+            payload.asIntBuffer().put(ranges);
+            append(DIFF_RANGES, key, payload.array());
+        }
+    }
+    
+    /**
+     * 64-bit FNV-1a hash of a text, combined with its length
+     */
+    public static long contentHash(CharSequence text) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return (hash ^ text.length()) * FNV_PRIME;
+    }
+    
+    private static String treeKey(String rootPath, String revision, String relativePath) {
+        return rootPath + '\0' + revision + '\0' + relativePath;
+    }
+    
+    private static String diffKey(String blobId, long contentHash) {
+        return blobId + ':' + Long.toHexString(contentHash);
+    }
+    
+    private boolean contains(byte type, String key) {
+        return ensureOpen() && index.containsKey(type + key);
+    }
+    
+    private @Nullable ByteBuffer read(byte type, String key) {
+        if (!ensureOpen()) {
+            return null;
+        }
+        Location location = index.get(type + key);
+        if (location == null) {
+            return null;
+        }
+        
+        try {
+            if (location.offset + location.length <= mapped.capacity()) {
+                return mapped.slice((int) location.offset, location.length);
+            }
+            // Appended after the file was mapped
+            ByteBuffer payload = ByteBuffer.allocate(location.length);
+            readFully(channel, payload, location.offset);
+            return payload.flip();
+        } catch (IOException e) {
+            LOG.warn("Failed to read the diff snapshot store, disabling it", e);
+            close();
+            return null;
+        }
+    }
+    
+    private void append(byte type, String key, byte[] payload) {
+        if (!ensureOpen()) {
+            return;
+        }
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int recordLength = RECORD_HEADER_BYTES + keyBytes.length + payload.length;
+        if (recordLength > MAX_RECORD_BYTES || fileSize + recordLength > MAX_FILE_BYTES) {
+            // Full until the next open compacts it
+            return;
+        }
+        
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(recordLength).putInt(0).put(type).putShort((short) keyBytes.length).put(keyBytes).put(payload);
+        record.putInt(Integer.BYTES, checksum(record.array(), 2 * Integer.BYTES, recordLength - 2 * Integer.BYTES));
+        record.flip();
+        
+        try {
+            long position = fileSize;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            index.put(type + key, new Location(fileSize + recordLength - payload.length, payload.length));
+            fileSize = position;
+        } catch (IOException e) {
+            LOG.warn("Failed to write the diff snapshot store, disabling it", e);
+            close();
+        }
+    }
+    
+    /**
+     * Opens the store on first use. Returns false if it is unavailable, it then stays disabled
+     * for the rest of the session.
+     */
+    private boolean ensureOpen() {
+        if (opened) {
+            return channel != null;
+        }
+        opened = true;
+        
+        try {
+            Path storeDirectory = directory.get();
+            Files.createDirectories(storeDirectory);
+            Path file = storeDirectory.resolve(FILE_NAME);
+            if (Files.exists(file) && Files.size(file) > COMPACTION_THRESHOLD_BYTES) {
+                compact(file);
+            }
+            
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!hasValidHeader()) {
+                channel.truncate(0);
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).putLong(MAGIC).putInt(VERSION).flip();
+                channel.write(header, 0);
+            }
+            
+            List<Record> records = scan(channel);
+            fileSize = records.isEmpty() ? FILE_HEADER_BYTES : records.get(records.size() - 1).end();
+            if (fileSize < channel.size()) {
+                LOG.info("Dropping " + (channel.size() - fileSize) + " bytes of incomplete records from the diff snapshot store");
+                channel.truncate(fileSize);
+            }
+            for (Record record : records) {
+                index.put(record.indexKey(), record.payload());
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            return true;
+        } catch (IOException e) {
+            LOG.warn("Failed to open the diff snapshot store", e);
+            close();
+            return false;
+        }
+    }
+    
+    private boolean hasValidHeader() throws IOException {
+        if (channel.size() < FILE_HEADER_BYTES) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+        readFully(channel, header, 0);
+        header.flip();
+        return header.getLong() == MAGIC && header.getInt() == VERSION;
+    }
+    
+    /**
+     * Reads the records of the file up to the first one that is incomplete or fails its checksum
+     */
+    private static List<Record> scan(FileChannel channel) throws IOException {
+        List<Record> records = new ArrayList<>();
+        long size = channel.size();
+        long position = FILE_HEADER_BYTES;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        
+        while (position + RECORD_HEADER_BYTES <= size) {
+            lengthBuffer.clear();
+            readFully(channel, lengthBuffer, position);
+            int recordLength = lengthBuffer.flip().getInt();
+            if (recordLength < RECORD_HEADER_BYTES || recordLength > MAX_RECORD_BYTES || position + recordLength > size) {
+                break;
+            }
+            
+            ByteBuffer record = ByteBuffer.allocate(recordLength);
+            readFully(channel, record, position);
+            byte[] bytes = record.array();
+            int storedChecksum = record.getInt(Integer.BYTES);
+            if (storedChecksum != checksum(bytes, 2 * Integer.BYTES, recordLength - 2 * Integer.BYTES)) {
+                break;
+            }
+            
+            byte type = record.get(2 * Integer.BYTES);
+            int keyLength = record.getShort(2 * Integer.BYTES + 1) & 0xffff;
+            if (RECORD_HEADER_BYTES + keyLength > recordLength) {
+                break;
+            }
+            String key = new String(bytes, RECORD_HEADER_BYTES, keyLength, StandardCharsets.UTF_8);
+            int payloadOffset = RECORD_HEADER_BYTES + keyLength;
+            records.add(new Record(type + key, position,
+                new Location(position + payloadOffset, recordLength - payloadOffset)));
+            position += recordLength;
+        }
+        return records;
+    }
+    
+    /**
+     * Rewrites the file with the newest record of each key, up to half the size limit, and moves
+     * it over the old one. A crash at any point leaves either the old or the new file intact.
+     */
+    private static void compact(Path file) throws IOException {
+        Path compacted = file.resolveSibling(FILE_NAME + ".tmp");
+        try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Map<String, Record> newest = new HashMap<>();
+            for (Record record : scan(source)) {
+                newest.put(record.indexKey(), record);
+            }
+            
+            List<Record> kept = new ArrayList<>(newest.values());
+            kept.sort(Comparator.comparingLong(Record::offset).reversed());
+            long keptBytes = FILE_HEADER_BYTES;
+            int keptCount = 0;
+            while (keptCount < kept.size() && keptBytes + kept.get(keptCount).length() <= MAX_FILE_BYTES / 2) {
+                keptBytes += kept.get(keptCount++).length();
+            }
+            kept = kept.subList(0, keptCount);
+            kept.sort(Comparator.comparingLong(Record::offset));
+            
+            target.write(ByteBuffer.allocate(FILE_HEADER_BYTES).putLong(MAGIC).putInt(VERSION).flip());
+            for (Record record : kept) {
+                long position = record.offset();
+                long end = record.end();
+                while (position < end) {
+                    position += source.transferTo(position, end - position, target);
+                }
+            }
+            target.force(true);
+        }
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new IOException("Unexpected end of the diff snapshot store");
+            }
+        }
+    }
+    
+    private static int checksum(byte[] bytes, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, offset, length);
+        return (int) crc.getValue();
+    }
+    
+    private void close() {
+        index.clear();
+        mapped = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close the diff snapshot store", e);
+            }
+            channel = null;
+        }
+    }
+    
+    @Override
+    public synchronized void dispose() {
+        if (channel != null) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                LOG.warn("Failed to flush the diff snapshot store", e);
+            }
+        }
+        close();
+    }
+    
+    private record Location(long offset, int length) {
+    }
+    
+    private record Record(String indexKey, long offset, Location payload) {
+        int length() {
+            return (int) (payload.offset() + payload.length() - offset);
+        }
+        
+        long end() {
+            return offset + length();
+        }
+    }
+}
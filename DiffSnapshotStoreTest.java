@@ -0,0 +1,156 @@
+package com.example.diffplugin.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DiffSnapshotStoreTest {
+    private static final String ROOT = "/repo";
+    private static final String REVISION = "0123456789abcdef0123456789abcdef01234567";
+    // Compaction keeps the newest records up to half of the 64 MB limit
+    private static final long COMPACTED_MAX_BYTES = 32L * 1024 * 1024;
+    
+    @TempDir
+    Path directory;
+    
+    @Test
+    void keepsRecordsAcrossReopen() {
+        long contentHash = DiffSnapshotStore.contentHash("current\ntext");
+        DiffSnapshotStore store = open();
+        store.putBlobId(ROOT, REVISION, "src/A.java", "blob-a");
+        store.putBlobText("blob-a", "café\nline");
+        store.putDiffRanges("blob-a", contentHash, new int[]{1, 2, 1, 3});
+        store.dispose();
+        
+        DiffSnapshotStore reopened = open();
+        assertEquals("blob-a", reopened.getBlobId(ROOT, REVISION, "src/A.java"));
+        assertEquals("café\nline", reopened.getBlobText("blob-a").toString());
+        assertArrayEquals(new int[]{1, 2, 1, 3}, reopened.getDiffRanges("blob-a", contentHash));
+        assertNull(reopened.getBlobId(ROOT, "other", "src/A.java"));
+        assertNull(reopened.getDiffRanges("blob-a", contentHash + 1));
+        reopened.dispose();
+    }
+    
+    @Test
+    void laterBlobIdWins() {
+        DiffSnapshotStore store = open();
+        store.putBlobId(ROOT, REVISION, "a.txt", "first");
+        store.putBlobId(ROOT, REVISION, "a.txt", "second");
+        store.dispose();
+        
+        DiffSnapshotStore reopened = open();
+        assertEquals("second", reopened.getBlobId(ROOT, REVISION, "a.txt"));
+        reopened.dispose();
+    }
+    
+    @Test
+    void dropsTornLastRecordOnOpen() throws IOException {
+        DiffSnapshotStore store = open();
+        store.putBlobId(ROOT, REVISION, "a.txt", "blob-a");
+        store.putBlobId(ROOT, REVISION, "b.txt", "blob-b");
+        store.putBlobId(ROOT, REVISION, "c.txt", "blob-c");
+        store.dispose();
+        
+        // A crash in the middle of the last append
+        long size = Files.size(file());
+        try (FileChannel channel = FileChannel.open(file(), StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+        
+        DiffSnapshotStore reopened = open();
+        assertEquals("blob-a", reopened.getBlobId(ROOT, REVISION, "a.txt"));
+        assertEquals("blob-b", reopened.getBlobId(ROOT, REVISION, "b.txt"));
+        assertNull(reopened.getBlobId(ROOT, REVISION, "c.txt"));
+        reopened.putBlobId(ROOT, REVISION, "d.txt", "blob-d");
+        reopened.dispose();
+        
+        DiffSnapshotStore appended = open();
+        assertEquals("blob-b", appended.getBlobId(ROOT, REVISION, "b.txt"));
+        assertEquals("blob-d", appended.getBlobId(ROOT, REVISION, "d.txt"));
+        appended.dispose();
+    }
+    
+    @Test
+    void dropsRecordWithBadChecksum() throws IOException {
+        DiffSnapshotStore store = open();
+        store.putBlobId(ROOT, REVISION, "a.txt", "blob-a");
+        store.putBlobId(ROOT, REVISION, "b.txt", "blob-b");
+        store.dispose();
+        
+        long size = Files.size(file());
+        try (FileChannel channel = FileChannel.open(file(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), size - 1);
+        }
+        
+        DiffSnapshotStore reopened = open();
+        assertEquals("blob-a", reopened.getBlobId(ROOT, REVISION, "a.txt"));
+        assertNull(reopened.getBlobId(ROOT, REVISION, "b.txt"));
+        reopened.dispose();
+    }
+    
+    @Test
+    void startsOverOnForeignFile() throws IOException {
+        Files.writeString(file(), "not a snapshot store");
+        
+        DiffSnapshotStore store = open();
+        assertNull(store.getBlobText("blob-a"));
+        store.putBlobText("blob-a", "text");
+        store.dispose();
+        
+        DiffSnapshotStore reopened = open();
+        assertEquals("text", reopened.getBlobText("blob-a").toString());
+        reopened.dispose();
+    }
+    
+    @Test
+    void compactsToNewestRecordsOnOpen() throws IOException {
+        // Thirteen records just under the 4 MB record limit pass the 48 MB compaction threshold
+        DiffSnapshotStore store = open();
+        for (int i = 0; i < 13; i++) {
+            store.putBlobText("blob-" + i, largeText(i));
+        }
+        store.dispose();
+        assertTrue(Files.size(file()) > 48L * 1024 * 1024);
+        
+        // The store opens, and compacts, on first use
+        DiffSnapshotStore reopened = open();
+        assertNull(reopened.getBlobText("blob-0"));
+        assertTrue(Files.size(file()) <= COMPACTED_MAX_BYTES);
+        assertNull(reopened.getBlobText("blob-4"));
+        for (int i = 5; i < 13; i++) {
+            assertEquals(largeText(i), reopened.getBlobText("blob-" + i).toString(), "blob-" + i);
+        }
+        reopened.dispose();
+    }
+    
+    @Test
+    void contentHashDependsOnText() {
+        assertEquals(DiffSnapshotStore.contentHash("a\nb"), DiffSnapshotStore.contentHash(new StringBuilder("a\nb")));
+        assertNotEquals(DiffSnapshotStore.contentHash("a\nb"), DiffSnapshotStore.contentHash("a\nb\n"));
+        assertNotEquals(DiffSnapshotStore.contentHash(""), DiffSnapshotStore.contentHash("\0"));
+    }
+    
+    private DiffSnapshotStore open() {
+        return new DiffSnapshotStore(() -> directory);
+    }
+    
+    private Path file() {
+        return directory.resolve("snapshots.dat");
+    }
+    
+    private static String largeText(int i) {
+        return String.valueOf((char) ('a' + i)).repeat(3_900_000);
+    }
+}
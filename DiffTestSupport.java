@@ -0,0 +1,139 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ContentSnapshot;
+import com.example.diffplugin.model.FileDiff;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Random texts and edits for the diff tests, and checks that a diff really describes two texts
+ */
+final class DiffTestSupport {
+    private final Random random;
+    private int nextUniqueLine;
+    
+    DiffTestSupport(long seed) {
+        this.random = new Random(seed);
+    }
+    
+    Random random() {
+        return random;
+    }
+    
+    /**
+     * Lines that never repeat, so that any two texts have exactly one best alignment
+     */
+    List<String> uniqueLines(int count) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add("line " + nextUniqueLine++);
+        }
+        return lines;
+    }
+    
+    /**
+     * Lines from a tiny alphabet, full of repeats and ambiguous alignments
+     */
+    List<String> repetitiveLines(int count) {
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(randomRepetitiveLine());
+        }
+        return lines;
+    }
+    
+    /**
+     * Replaces a random range of lines, possibly empty, by up to three new lines. Never leaves
+     * the text without lines.
+     */
+    Edit randomEdit(List<String> lines, boolean unique) {
+        while (true) {
+            int start = random.nextInt(lines.size() + 1);
+            int end = start + random.nextInt(Math.min(4, lines.size() - start + 1));
+            int added = random.nextInt(4);
+            if ((start == end && added == 0) || lines.size() - (end - start) + added == 0) {
+                continue;
+            }
+            List<String> replacement = unique ? uniqueLines(added) : repetitiveLines(added);
+            return new Edit(start, end, replacement);
+        }
+    }
+    
+    List<String> applyRandomEdits(List<String> lines, int count, boolean unique) {
+        List<String> result = lines;
+        for (int i = 0; i < count; i++) {
+            result = randomEdit(result, unique).applyTo(result);
+        }
+        return result;
+    }
+    
+    private String randomRepetitiveLine() {
+        return String.valueOf((char) ('a' + random.nextInt(4)));
+    }
+    
+    static ContentSnapshot snapshot(List<String> lines) {
+        return ContentSnapshot.of(String.join("\n", lines));
+    }
+    
+    /**
+     * Block ranges as "start-end/oldStart-oldEnd", readable in assertion failures
+     */
+    static List<String> describe(FileDiff fileDiff) {
+        List<String> blocks = new ArrayList<>(fileDiff.getBlockCount());
+        for (int i = 0; i < fileDiff.getBlockCount(); i++) {
+            blocks.add(fileDiff.getStartLine(i) + "-" + fileDiff.getEndLine(i)
+                + "/" + fileDiff.getOldStartLine(i) + "-" + fileDiff.getOldEndLine(i));
+        }
+        return blocks;
+    }
+    
+    static int countChangedLines(FileDiff fileDiff) {
+        int changed = 0;
+        for (int i = 0; i < fileDiff.getBlockCount(); i++) {
+            changed += fileDiff.getEndLine(i) - fileDiff.getStartLine(i);
+            changed += fileDiff.getOldEndLine(i) - fileDiff.getOldStartLine(i);
+        }
+        return changed;
+    }
+    
+    /**
+     * Rebuilds the new lines from the old ones by replacing every block with its new lines. The
+     * blocks must be sorted, disjoint and non-empty, and the lines between them must be equal.
+     */
+    static void assertDescribes(FileDiff fileDiff, List<String> oldLines, List<String> newLines) {
+        List<String> rebuilt = new ArrayList<>(newLines.size());
+        int oldPosition = 0;
+        for (int i = 0; i < fileDiff.getBlockCount(); i++) {
+            int oldStart = fileDiff.getOldStartLine(i);
+            int oldEnd = fileDiff.getOldEndLine(i);
+            int start = fileDiff.getStartLine(i);
+            int end = fileDiff.getEndLine(i);
+            assertTrue(oldStart >= oldPosition, () -> "Blocks overlap or are unsorted: " + describe(fileDiff));
+            assertTrue(start < end || oldStart < oldEnd, () -> "Empty block in " + describe(fileDiff));
+            
+            rebuilt.addAll(oldLines.subList(oldPosition, oldStart));
+            assertEquals(start, rebuilt.size(), () -> "Block " + describe(fileDiff).get(i) + " is misplaced");
+            rebuilt.addAll(newLines.subList(start, end));
+            oldPosition = oldEnd;
+        }
+        rebuilt.addAll(oldLines.subList(oldPosition, oldLines.size()));
+        assertEquals(newLines, rebuilt);
+    }
+    
+    /**
+     * Lines [start, end) replaced by new lines
+     */
+    record Edit(int start, int end, List<String> replacement) {
+        List<String> applyTo(List<String> lines) {
+            List<String> result = new ArrayList<>(lines.subList(0, start));
+            result.addAll(replacement);
+            result.addAll(lines.subList(end, lines.size()));
+            return result;
+        }
+    }
+}
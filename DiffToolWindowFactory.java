@@ -1,15 +1,18 @@
 package com.example.diffplugin.toolwindow;
 
+import com.example.diffplugin.ui.DiffDiagnosticsPanel;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.wm.ToolWindow;
 import com.intellij.openapi.wm.ToolWindowFactory;
 import com.intellij.ui.content.Content;
 import com.intellij.ui.content.ContentFactory;
+import com.intellij.ui.content.ContentManager;
 import org.jetbrains.annotations.NotNull;
 
 import javax.swing.*;
 
 public class DiffToolWindowFactory implements ToolWindowFactory {
+    public static final String TOOL_WINDOW_ID = "UnifiedDiff";
     
     @Override
     public void createToolWindowContent(@NotNull Project project, @NotNull ToolWindow toolWindow) {
@@ -19,5 +22,26 @@ public class DiffToolWindowFactory implements ToolWindowFactory {
         ContentFactory contentFactory = ContentFactory.getInstance();
         Content content = contentFactory.createContent(placeholderLabel, "", false);
         toolWindow.getContentManager().addContent(content);
+        
+        DiffDiagnosticsPanel diagnosticsPanel = new DiffDiagnosticsPanel(project);
+        Content diagnosticsContent = contentFactory.createContent(diagnosticsPanel, "Diagnostics", false);
+        diagnosticsContent.setDisposer(diagnosticsPanel);
+        diagnosticsContent.setCloseable(false);
+        toolWindow.getContentManager().addContent(diagnosticsContent);
+    }
+    
+    /**
+     * Replaces the current diff view of the tool window, the diagnostics tab stays
+     */
+    public static void showContent(@NotNull ToolWindow toolWindow, @NotNull Content content) {
+        ContentManager contentManager = toolWindow.getContentManager();
+        for (Content existing : contentManager.getContents()) {
+            if (!(existing.getComponent() instanceof DiffDiagnosticsPanel)) {
+                contentManager.removeContent(existing, true);
+            }
+        }
+        contentManager.addContent(content, 0);
+        contentManager.setSelectedContent(content);
+        toolWindow.activate(null);
     }
 }
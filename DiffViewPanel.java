@@ -1,42 +1,57 @@
 package com.example.diffplugin.ui;
 
+import com.example.diffplugin.model.ContentSnapshot;
 import com.example.diffplugin.model.DiffBlock;
+import com.example.diffplugin.services.DiffCalculationService;
+import com.example.diffplugin.services.DiffModelService;
+import com.example.diffplugin.services.InlineDiffService;
+import com.intellij.diff.fragments.DiffFragment;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.Document;
-import com.intellij.openapi.editor.Editor;
-import com.intellij.openapi.editor.EditorFactory;
-import com.intellij.openapi.editor.colors.EditorColors;
-import com.intellij.openapi.editor.colors.EditorColorsManager;
-import com.intellij.openapi.editor.ex.EditorEx;
-import com.intellij.openapi.editor.highlighter.EditorHighlighterFactory;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.OpenFileDescriptor;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.ui.JBColor;
+import com.intellij.ui.components.JBList;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.ui.JBUI;
 
 import javax.swing.*;
 import java.awt.*;
-import java.awt.event.ActionEvent;
-import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
 
+/**
+ * Unified diff of one file as a list of hunks. The list is virtualized: a single renderer paints
+ * the visible hunks only and rows have a fixed height, so opening a diff with thousands of hunks
+ * neither creates per-hunk components nor materializes the text of hunks that are never shown.
+ */
 public class DiffViewPanel extends JPanel {
+    private static final int PREVIEW_LINES = 6;
+    
     private final Project project;
     private final VirtualFile file;
     private final List<DiffBlock> diffBlocks;
-    private final String currentContent;
-    private final Map<String, DiffBlockComponent> blockComponents;
+    private final ContentSnapshot currentContent;
+    private final Map<String, String> blockStatuses;
+    private final Set<String> pendingInnerFragments = new HashSet<>();
     
-    public DiffViewPanel(Project project, VirtualFile file, List<DiffBlock> diffBlocks, String currentContent) {
+    public DiffViewPanel(Project project, VirtualFile file, List<DiffBlock> diffBlocks, ContentSnapshot currentContent) {
         this.project = project;
         this.file = file;
         this.diffBlocks = diffBlocks;
         this.currentContent = currentContent;
-        this.blockComponents = new HashMap<>();
+        this.blockStatuses = new HashMap<>();
         
         initializeUI();
     }
@@ -67,181 +82,313 @@ public class DiffViewPanel extends JPanel {
     }
     
     private JScrollPane createDiffScrollPane() {
-        JPanel mainPanel = new JPanel();
-        mainPanel.setLayout(new BoxLayout(mainPanel, BoxLayout.Y_AXIS));
-        
         if (diffBlocks.isEmpty()) {
             JLabel noChangesLabel = new JLabel("No changes detected", SwingConstants.CENTER);
             noChangesLabel.setBorder(JBUI.Borders.empty(20));
-            mainPanel.add(noChangesLabel);
-        } else {
-            for (DiffBlock diffBlock : diffBlocks) {
-                DiffBlockComponent blockComponent = new DiffBlockComponent(diffBlock);
-                blockComponents.put(diffBlock.getBlockId(), blockComponent);
-                mainPanel.add(blockComponent);
-                mainPanel.add(Box.createVerticalStrut(10));
-            }
+            return new JBScrollPane(noChangesLabel);
         }
         
-        JScrollPane scrollPane = new JScrollPane(mainPanel);
+        // Blocks are created on access, the model never copies the list
+        JBList<DiffBlock> list = new JBList<>(new AbstractListModel<DiffBlock>() {
+            @Override
+            public int getSize() {
+                return diffBlocks.size();
+            }
+            
+            @Override
+            public DiffBlock getElementAt(int index) {
+                return diffBlocks.get(index);
+            }
+        });
+        
+        DiffBlockRenderer renderer = new DiffBlockRenderer();
+        list.setCellRenderer(renderer);
+        // Without fixed cell sizes the list would render every hunk up front to measure it
+        list.setFixedCellHeight(renderer.getCellHeight());
+        list.setFixedCellWidth(JBUI.scale(300));
+        list.addMouseListener(new DiffBlockMouseListener(list, renderer));
+        
+        JBScrollPane scrollPane = new JBScrollPane(list);
         scrollPane.setVerticalScrollBarPolicy(JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED);
         scrollPane.setHorizontalScrollBarPolicy(JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED);
         
         return scrollPane;
     }
     
-    private class DiffBlockComponent extends JPanel {
-        private final DiffBlock diffBlock;
-        private JButton acceptButton;
-        private JButton rejectButton;
+    private void acceptBlock(JList<DiffBlock> list, DiffBlock diffBlock) {
+        // Keep the current changes, the block is only hidden from the inline view
+        Document document = FileDocumentManager.getInstance().getDocument(file);
+        if (document != null) {
+            project.getService(DiffModelService.class).acceptBlock(document, diffBlock.getBlockId());
+            project.getService(InlineDiffService.class).refreshFromModel(document, file);
+        }
+        blockStatuses.put(diffBlock.getBlockId(), "Accepted");
+        list.repaint();
         
-        public DiffBlockComponent(DiffBlock diffBlock) {
-            this.diffBlock = diffBlock;
-            initializeBlockUI();
+        JOptionPane.showMessageDialog(DiffViewPanel.this, 
+            "Changes accepted for block: " + diffBlock.getBlockId());
+    }
+    
+    private void rejectBlock(JList<DiffBlock> list, DiffBlock diffBlock) {
+        // Revert to original content
+        if (!revertToOriginalContent(diffBlock)) {
+            JOptionPane.showMessageDialog(DiffViewPanel.this,
+                "The file has changed since this diff was shown, block " + diffBlock.getBlockId() + " was not found");
+            return;
         }
+        blockStatuses.put(diffBlock.getBlockId(), "Rejected");
+        list.repaint();
         
-        private void initializeBlockUI() {
-            setLayout(new BorderLayout());
+        JOptionPane.showMessageDialog(DiffViewPanel.this, 
+            "Changes rejected for block: " + diffBlock.getBlockId());
+    }
+    
+    /**
+     * Block ids are content based, so the block is found in the model's diff of the document
+     * as long as the hunk itself was not edited
+     */
+    private boolean revertToOriginalContent(DiffBlock diffBlock) {
+        Document document = FileDocumentManager.getInstance().getDocument(file);
+        if (document == null) {
+            return false;
+        }
+        
+        DiffModelService diffModel = project.getService(DiffModelService.class);
+        boolean[] rejected = new boolean[1];
+        WriteCommandAction.runWriteCommandAction(project, "Reject Changes", null,
+            () -> rejected[0] = diffModel.rejectBlock(document, diffBlock.getBlockId()));
+        if (rejected[0]) {
+            project.getService(InlineDiffService.class).refreshFromModel(document, file);
+        }
+        return rejected[0];
+    }
+    
+    /**
+     * Paints one hunk: its type, the accept/reject buttons and a preview of the old and new lines.
+     * One instance paints all rows, so its components are configured anew for every cell.
+     */
+    private class DiffBlockRenderer extends JPanel implements ListCellRenderer<DiffBlock> {
+        private final JLabel typeLabel = new JLabel();
+        private final JButton acceptButton = new JButton("Accept");
+        private final JButton rejectButton = new JButton("Reject");
+        private final JTextArea oldTextArea = createCodeArea(new Color(255, 240, 240));
+        private final JTextArea newTextArea = createCodeArea(new Color(240, 255, 240));
+        private final JPanel oldPanel = createCodePanel(oldTextArea, "Original (will be removed):", JBColor.RED.darker());
+        private final JPanel newPanel = createCodePanel(newTextArea, "New (will be kept):", JBColor.GREEN.darker());
+        private final JPanel contentPanel = new JPanel(new GridLayout(1, 2, JBUI.scale(5), 0));
+        
+        DiffBlockRenderer() {
+            super(new BorderLayout());
             setBorder(JBUI.Borders.compound(
+                JBUI.Borders.empty(0, 0, 10, 0),
                 JBUI.Borders.customLine(JBColor.GRAY, 1),
                 JBUI.Borders.empty(5)
             ));
             
-            JPanel buttonPanel = createButtonPanel();
-            add(buttonPanel, BorderLayout.NORTH);
-            
-            JPanel contentPanel = createContentPanel();
-            add(contentPanel, BorderLayout.CENTER);
-        }
-        
-        private JPanel createButtonPanel() {
             JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-            
-            JLabel typeLabel = new JLabel(getTypeDescription());
+            buttonPanel.setOpaque(false);
             typeLabel.setFont(typeLabel.getFont().deriveFont(Font.BOLD));
-            typeLabel.setForeground(getTypeColor());
             buttonPanel.add(typeLabel);
-            
             buttonPanel.add(Box.createHorizontalStrut(10));
-            
-            acceptButton = new JButton("Accept");
             acceptButton.setToolTipText("Keep the new changes");
-            acceptButton.addActionListener(new AcceptActionListener());
             buttonPanel.add(acceptButton);
-            
-            rejectButton = new JButton("Reject");
             rejectButton.setToolTipText("Revert to original content");
-            rejectButton.addActionListener(new RejectActionListener());
             buttonPanel.add(rejectButton);
+            add(buttonPanel, BorderLayout.NORTH);
             
-            return buttonPanel;
+            contentPanel.setOpaque(false);
+            add(contentPanel, BorderLayout.CENTER);
         }
         
-        private JPanel createContentPanel() {
-            JPanel contentPanel = new JPanel(new BorderLayout());
+        /**
+         * Height of a row showing PREVIEW_LINES lines on both sides
+         */
+        int getCellHeight() {
+            String preview = "\n".repeat(PREVIEW_LINES - 1);
+            oldTextArea.setText(preview);
+            newTextArea.setText(preview);
+            contentPanel.removeAll();
+            contentPanel.add(oldPanel);
+            contentPanel.add(newPanel);
+            return getPreferredSize().height;
+        }
+        
+        @Override
+        public Component getListCellRendererComponent(JList<? extends DiffBlock> list, DiffBlock diffBlock,
+                                                      int index, boolean isSelected, boolean cellHasFocus) {
+            typeLabel.setText(diffBlock.getStage() != null
+                ? getTypeDescription(diffBlock) + ", " + diffBlock.getStage().getDisplayName()
+                : getTypeDescription(diffBlock));
+            typeLabel.setForeground(getTypeColor(diffBlock));
+            
+            String status = blockStatuses.get(diffBlock.getBlockId());
+            acceptButton.setEnabled(status == null);
+            rejectButton.setEnabled(status == null);
+            acceptButton.setText("Accepted".equals(status) ? "Accepted" : "Accept");
+            rejectButton.setText("Rejected".equals(status) ? "Rejected" : "Reject");
             
+            contentPanel.removeAll();
+            // Only visible rows are rendered, so word-level changes are requested as rows scroll into view
+            List<DiffFragment> innerFragments = getInnerFragments(list, diffBlock);
             if (diffBlock.isDeletion() || diffBlock.isModification()) {
-                JPanel oldPanel = createCodePanel(diffBlock.getOldContent(), "Original (will be removed):", JBColor.RED.darker());
-                contentPanel.add(oldPanel, BorderLayout.WEST);
+                int totalLines = diffBlock.getOldEndLine() - diffBlock.getOldStartLine();
+                oldTextArea.setText(formatPreview(diffBlock.getOldContent(PREVIEW_LINES), totalLines));
+                InnerFragmentHighlighter.highlight(oldTextArea, innerFragments, true, getPreviewLength(oldTextArea, totalLines));
+                contentPanel.add(oldPanel);
             }
-            
             if (diffBlock.isAddition() || diffBlock.isModification()) {
-                JPanel newPanel = createCodePanel(diffBlock.getNewContent(), "New (will be kept):", JBColor.GREEN.darker());
-                contentPanel.add(newPanel, BorderLayout.EAST);
+                int totalLines = diffBlock.getEndLine() - diffBlock.getStartLine();
+                newTextArea.setText(formatPreview(diffBlock.getNewContent(PREVIEW_LINES), totalLines));
+                InnerFragmentHighlighter.highlight(newTextArea, innerFragments, false, getPreviewLength(newTextArea, totalLines));
+                contentPanel.add(newPanel);
             }
             
-            return contentPanel;
+            setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+            return this;
         }
         
-        private JPanel createCodePanel(List<String> lines, String title, Color borderColor) {
-            JPanel panel = new JPanel(new BorderLayout());
-            panel.setBorder(JBUI.Borders.compound(
-                JBUI.Borders.customLine(borderColor, 2),
-                JBUI.Borders.empty(5)
-            ));
-            
-            JLabel titleLabel = new JLabel(title);
-            titleLabel.setFont(titleLabel.getFont().deriveFont(Font.BOLD, 12f));
-            panel.add(titleLabel, BorderLayout.NORTH);
-            
-            StringBuilder content = new StringBuilder();
-            for (String line : lines) {
-                content.append(line).append("\n");
-            }
-            
-            JTextArea textArea = new JTextArea(content.toString());
-            textArea.setEditable(false);
-            textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
-            textArea.setBackground(borderColor.equals(JBColor.RED.darker()) ? 
-                new Color(255, 240, 240) : new Color(240, 255, 240));
-            
-            JScrollPane scrollPane = new JScrollPane(textArea);
-            scrollPane.setPreferredSize(new Dimension(300, Math.min(100, lines.size() * 20 + 20)));
-            panel.add(scrollPane, BorderLayout.CENTER);
-            
-            return panel;
+        /**
+         * Lays the renderer out for the cell so that hits on its buttons can be resolved
+         */
+        Component hitTest(JList<DiffBlock> list, int index, Point point) {
+            Rectangle bounds = list.getCellBounds(index, index);
+            getListCellRendererComponent(list, list.getModel().getElementAt(index), index, false, false);
+            setBounds(0, 0, bounds.width, bounds.height);
+            layoutRecursively(this);
+            return SwingUtilities.getDeepestComponentAt(this, point.x - bounds.x, point.y - bounds.y);
         }
         
-        private String getTypeDescription() {
-            switch (diffBlock.getType()) {
-                case ADDED: return "Addition (lines " + diffBlock.getStartLine() + "-" + diffBlock.getEndLine() + ")";
-                case DELETED: return "Deletion (lines " + diffBlock.getStartLine() + "-" + diffBlock.getEndLine() + ")";
-                case MODIFIED: return "Modification (lines " + diffBlock.getStartLine() + "-" + diffBlock.getEndLine() + ")";
-                default: return "Change";
+        private void layoutRecursively(Component component) {
+            if (component instanceof Container container) {
+                container.doLayout();
+                for (Component child : container.getComponents()) {
+                    layoutRecursively(child);
+                }
             }
         }
+    }
+    
+    /**
+     * Word-level changes of the block if they are computed already. Otherwise they are computed
+     * in the background, the row is painted without them and repainted once they are ready.
+     */
+    private List<DiffFragment> getInnerFragments(JList<? extends DiffBlock> list, DiffBlock diffBlock) {
+        DiffCalculationService diffService = project.getService(DiffCalculationService.class);
+        List<DiffFragment> innerFragments = diffService.getCachedInnerFragments(diffBlock);
+        if (innerFragments != null) {
+            return innerFragments;
+        }
         
-        private Color getTypeColor() {
-            switch (diffBlock.getType()) {
-                case ADDED: return JBColor.GREEN.darker();
-                case DELETED: return JBColor.RED.darker();
-                case MODIFIED: return JBColor.ORANGE.darker();
-                default: return JBColor.BLACK;
-            }
+        String blockId = diffBlock.getBlockId();
+        if (pendingInnerFragments.add(blockId)) {
+            AppExecutorUtil.getAppExecutorService().execute(() -> {
+                diffService.getInnerFragments(diffBlock);
+                ApplicationManager.getApplication().invokeLater(() -> {
+                    pendingInnerFragments.remove(blockId);
+                    list.repaint();
+                }, ModalityState.any());
+            });
         }
+        return Collections.emptyList();
+    }
+    
+    private static JTextArea createCodeArea(Color background) {
+        JTextArea textArea = new JTextArea();
+        textArea.setEditable(false);
+        textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        textArea.setBackground(background);
+        return textArea;
+    }
+    
+    private static JPanel createCodePanel(JTextArea textArea, String title, Color borderColor) {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(JBUI.Borders.compound(
+            JBUI.Borders.customLine(borderColor, 2),
+            JBUI.Borders.empty(5)
+        ));
         
-        private class AcceptActionListener implements ActionListener {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                // Keep the current changes (do nothing, as current content is already there)
-                acceptButton.setEnabled(false);
-                rejectButton.setEnabled(false);
-                acceptButton.setText("Accepted");
-                
-                // Optionally, you could mark this block as accepted in some way
-                JOptionPane.showMessageDialog(DiffViewPanel.this, 
-                    "Changes accepted for block: " + diffBlock.getBlockId());
+        JLabel titleLabel = new JLabel(title);
+        titleLabel.setFont(titleLabel.getFont().deriveFont(Font.BOLD, 12f));
+        panel.add(titleLabel, BorderLayout.NORTH);
+        panel.add(textArea, BorderLayout.CENTER);
+        
+        return panel;
+    }
+    
+    /**
+     * Length of the block text shown in a preview area, without the "more lines" note
+     */
+    private static int getPreviewLength(JTextArea textArea, int totalLines) {
+        String text = textArea.getText();
+        return totalLines > PREVIEW_LINES ? text.lastIndexOf("\n... ") : text.length();
+    }
+    
+    /**
+     * Joins the lines of a preview, replacing the last one by a summary if the block is longer
+     */
+    private static String formatPreview(List<String> lines, int totalLines) {
+        int shownLines = totalLines > PREVIEW_LINES ? PREVIEW_LINES - 1 : lines.size();
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < shownLines; i++) {
+            if (i > 0) {
+                content.append("\n");
             }
+            content.append(lines.get(i));
+        }
+        if (totalLines > shownLines) {
+            content.append("\n... ").append(totalLines - shownLines).append(" more lines");
+        }
+        return content.toString();
+    }
+    
+    private static String getTypeDescription(DiffBlock diffBlock) {
+        switch (diffBlock.getType()) {
+            case ADDED: return "Addition (lines " + diffBlock.getStartLine() + "-" + diffBlock.getEndLine() + ")";
+            case DELETED: return "Deletion (lines " + diffBlock.getStartLine() + "-" + diffBlock.getEndLine() + ")";
+            case MODIFIED: return "Modification (lines " + diffBlock.getStartLine() + "-" + diffBlock.getEndLine() + ")";
+            default: return "Change";
+        }
+    }
+    
+    private static Color getTypeColor(DiffBlock diffBlock) {
+        switch (diffBlock.getType()) {
+            case ADDED: return JBColor.GREEN.darker();
+            case DELETED: return JBColor.RED.darker();
+            case MODIFIED: return JBColor.ORANGE.darker();
+            default: return JBColor.BLACK;
         }
+    }
+    
+    /**
+     * Routes clicks on the painted buttons to the hunk's actions, a double click elsewhere opens
+     * the file at the hunk
+     */
+    private class DiffBlockMouseListener extends MouseAdapter {
+        private final JBList<DiffBlock> list;
+        private final DiffBlockRenderer renderer;
         
-        private class RejectActionListener implements ActionListener {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                // Revert to original content
-                revertToOriginalContent();
-                acceptButton.setEnabled(false);
-                rejectButton.setEnabled(false);
-                rejectButton.setText("Rejected");
-                
-                JOptionPane.showMessageDialog(DiffViewPanel.this, 
-                    "Changes rejected for block: " + diffBlock.getBlockId());
-            }
+        DiffBlockMouseListener(JBList<DiffBlock> list, DiffBlockRenderer renderer) {
+            this.list = list;
+            this.renderer = renderer;
         }
         
-        private void revertToOriginalContent() {
-            ApplicationManager.getApplication().invokeLater(() -> {
-                WriteCommandAction.runWriteCommandAction(project, () -> {
-                    Document document = FileDocumentManager.getInstance().getDocument(file);
-                    if (document != null) {
-                        // This is a simplified revert - in a real implementation,
-                        // you'd need to carefully replace only the specific lines
-                        // For now, we'll show a message about what would be reverted
-                        String message = "Would revert lines " + diffBlock.getStartLine() + 
-                                       " to " + diffBlock.getEndLine() + " to original content";
-                        System.out.println(message);
-                    }
-                });
-            });
+        @Override
+        public void mouseClicked(MouseEvent e) {
+            int index = list.locationToIndex(e.getPoint());
+            if (index < 0 || !list.getCellBounds(index, index).contains(e.getPoint())) {
+                return;
+            }
+            
+            DiffBlock diffBlock = list.getModel().getElementAt(index);
+            Component target = renderer.hitTest(list, index, e.getPoint());
+            boolean pending = !blockStatuses.containsKey(diffBlock.getBlockId());
+            if (target == renderer.acceptButton && pending) {
+                acceptBlock(list, diffBlock);
+            } else if (target == renderer.rejectButton && pending) {
+                rejectBlock(list, diffBlock);
+            } else if (e.getClickCount() == 2) {
+                new OpenFileDescriptor(project, file, diffBlock.getStartLine(), 0).navigate(true);
+            }
         }
     }
 }
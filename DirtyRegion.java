@@ -0,0 +1,59 @@
+package com.example.diffplugin.model;
+
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.openapi.util.text.StringUtil;
+
+/**
+ * Range of lines touched by document edits since the last diff was computed.
+ * Lines [startLine, oldEndLine) of the previously diffed text became [startLine, newEndLine)
+ * of the current text; lines outside the region are unchanged apart from being shifted.
+ */
+public final class DirtyRegion {
+    private final int startLine;
+    private final int oldEndLine;
+    private final int newEndLine;
+    
+    public DirtyRegion(int startLine, int oldEndLine, int newEndLine) {
+        this.startLine = startLine;
+        this.oldEndLine = oldEndLine;
+        this.newEndLine = newEndLine;
+    }
+    
+    /**
+     * Creates the region affected by a single event, must be called after the change is applied
+     */
+    public static DirtyRegion fromEvent(DocumentEvent event) {
+        int startLine = event.getDocument().getLineNumber(event.getOffset());
+        int oldEndLine = startLine + StringUtil.countNewLines(event.getOldFragment()) + 1;
+        int newEndLine = startLine + StringUtil.countNewLines(event.getNewFragment()) + 1;
+        return new DirtyRegion(startLine, oldEndLine, newEndLine);
+    }
+    
+    /**
+     * Merges a later edit into this region. The later region is expressed in the coordinates of
+     * the text produced by this one.
+     */
+    public DirtyRegion union(DirtyRegion next) {
+        int start = Math.min(startLine, next.startLine);
+        int end = Math.max(newEndLine, next.oldEndLine);
+        int mergedOldEnd = oldEndLine + (end - newEndLine);
+        int mergedNewEnd = end + next.getLineDelta();
+        return new DirtyRegion(start, mergedOldEnd, mergedNewEnd);
+    }
+    
+    public int getStartLine() {
+        return startLine;
+    }
+    
+    public int getOldEndLine() {
+        return oldEndLine;
+    }
+    
+    public int getNewEndLine() {
+        return newEndLine;
+    }
+    
+    public int getLineDelta() {
+        return newEndLine - oldEndLine;
+    }
+}
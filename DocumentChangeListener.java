@@ -1,74 +1,180 @@
 package com.example.diffplugin.listeners;
 
+import com.example.diffplugin.services.DiffModelService;
 import com.example.diffplugin.services.InlineDiffService;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
 import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.event.BulkAwareDocumentListener;
 import com.intellij.openapi.editor.event.DocumentEvent;
-import com.intellij.openapi.editor.event.DocumentListener;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.project.ProjectLocator;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.Alarm;
+import com.intellij.util.containers.CollectionFactory;
+import git4idea.repo.GitRepositoryManager;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
-public class DocumentChangeListener implements DocumentListener {
+/**
+ * Feeds document edits into the diff model and schedules inline diff updates.
+ * The debounce delay adapts per document: it grows with the cost of the document's last diff and
+ * with the pauses between keystrokes, so cheap files update quickly and expensive ones are not
+ * re-diffed after every key. A pending update never waits longer than the max wait, and bulk
+ * edits such as reformatting trigger a single update when they finish.
+ * A single instance serves all projects, it is registered as an editor factory document listener.
+ */
+public class DocumentChangeListener implements BulkAwareDocumentListener {
+    private static final long MIN_DELAY_MS = 50;
+    private static final long MAX_DELAY_MS = 1500;
+    private static final long MAX_WAIT_MS = 2000;
+    // Pauses longer than this end a typing burst and are not part of the typing rate
+    private static final long TYPING_PAUSE_MS = 1000;
+    private static final double TYPING_RATE_SMOOTHING = 0.3;
+    
     private final Alarm alarm = new Alarm();
-    private final Map<Document, Runnable> pendingUpdates = new ConcurrentHashMap<>();
-    private static final int DELAY_MS = 500; // Delay to avoid too frequent updates
+    private final Map<Document, UpdateSchedule> schedules = CollectionFactory.createConcurrentWeakMap();
     
     @Override
     public void documentChanged(@NotNull DocumentEvent event) {
         Document document = event.getDocument();
-        VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        Project project = resolveProject(document);
+        if (project == null) {
+            return;
+        }
         
-        if (file == null || !file.isValid()) {
+        // Edits made by the model itself, such as rejecting a block, are already reflected in it
+        DiffModelService diffModel = project.getService(DiffModelService.class);
+        if (diffModel.isUpdatingModel(document)) {
             return;
         }
         
+        // Remember the touched lines right away, the debounced update only re-diffs those
+        diffModel.documentChanged(event);
+        
+        // Changes of a bulk update are diffed once, when it finishes
+        if (!document.isInBulkUpdate()) {
+            scheduleUpdate(document, project);
+        }
+    }
+    
+    @Override
+    public void bulkUpdateFinished(@NotNull Document document) {
+        Project project = resolveProject(document);
+        if (project != null) {
+            scheduleUpdate(document, project);
+        }
+    }
+    
+    /**
+     * Finds the project whose git-tracked content the document belongs to, or null if the
+     * document is never diffed. The cheapest checks come first: most events in a busy IDE come
+     * from consoles, diff viewers and other documents without a physical file.
+     */
+    private static @Nullable Project resolveProject(Document document) {
+        VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        // Light files back consoles, diff viewers and in-memory editors
+        if (file == null || !file.isValid() || !file.isInLocalFileSystem() || file.getFileType().isBinary()) {
+            return null;
+        }
+        
+        // Index lookup of the owning project, scratch files and files outside of any content root have none
+        Project project = ProjectLocator.getInstance().guessProjectForFile(file);
+        if (project == null || project.isDisposed() || !ProjectFileIndex.getInstance(project).isInContent(file)) {
+            return null;
+        }
+        
+        if (ChangeListManager.getInstance(project).isIgnoredFile(file)
+            || GitRepositoryManager.getInstance(project).getRepositoryForFileQuick(file) == null) {
+            return null;
+        }
+        return project;
+    }
+    
+    private void scheduleUpdate(Document document, Project project) {
+        long now = System.currentTimeMillis();
+        UpdateSchedule schedule = schedules.computeIfAbsent(document, d -> new UpdateSchedule());
+        schedule.recordChange(now);
+        
         // Cancel any pending update for this document
-        Runnable pendingUpdate = pendingUpdates.get(document);
-        if (pendingUpdate != null) {
-            alarm.cancelRequest(pendingUpdate);
+        if (schedule.pendingUpdate != null) {
+            alarm.cancelRequest(schedule.pendingUpdate);
         }
         
-        // Schedule a new update with delay to avoid too frequent updates
+        long lastComputeNanos = project.getService(DiffModelService.class).getLastComputeNanos(document);
+        long delay = schedule.computeDelay(now, lastComputeNanos);
+        
         Runnable updateTask = () -> {
-            pendingUpdates.remove(document);
-            updateInlineDiff(document, file);
+            schedule.pendingUpdate = null;
+            schedule.firstPendingChange = 0;
+            updateInlineDiff(document, project);
         };
-        
-        pendingUpdates.put(document, updateTask);
-        alarm.addRequest(updateTask, DELAY_MS);
+        schedule.pendingUpdate = updateTask;
+        alarm.addRequest(updateTask, delay);
     }
     
-    private void updateInlineDiff(Document document, VirtualFile file) {
-        // Find the project for this file
-        Project project = findProjectForFile(file);
-        if (project == null) {
+    private void updateInlineDiff(Document document, Project project) {
+        VirtualFile file = FileDocumentManager.getInstance().getFile(document);
+        if (project.isDisposed() || file == null || !file.isValid()) {
             return;
         }
         
-        // Find all editors for this document
+        // Only diff documents that are shown in an editor; the service refreshes all of them at once
         Editor[] editors = EditorFactory.getInstance().getEditors(document, project);
-        for (Editor editor : editors) {
+        if (editors.length > 0) {
             InlineDiffService diffService = project.getService(InlineDiffService.class);
-            diffService.updateInlineDiff(editor, file);
+            diffService.updateInlineDiff(document, file);
         }
     }
     
-    private Project findProjectForFile(VirtualFile file) {
-        Project[] openProjects = ProjectManager.getInstance().getOpenProjects();
-        for (Project project : openProjects) {
-            if (project.getProjectFile() != null && 
-                file.getPath().startsWith(project.getBasePath())) {
-                return project;
+    /**
+     * Debounce state of one document. Only touched on the EDT, where document events and the
+     * alarm requests run.
+     */
+    private static final class UpdateSchedule {
+        private Runnable pendingUpdate;
+        private long firstPendingChange;
+        private long lastChange;
+        private double typingIntervalMs = -1;
+        
+        void recordChange(long now) {
+            if (lastChange > 0) {
+                long interval = now - lastChange;
+                if (interval < TYPING_PAUSE_MS) {
+                    typingIntervalMs = typingIntervalMs < 0
+                        ? interval
+                        : TYPING_RATE_SMOOTHING * interval + (1 - TYPING_RATE_SMOOTHING) * typingIntervalMs;
+                }
+            }
+            lastChange = now;
+            if (firstPendingChange == 0) {
+                firstPendingChange = now;
+            }
+        }
+        
+        /**
+         * Waits about twice as long as the last diff took, and longer than the current pause
+         * between keystrokes so that a typing burst ends in one update. The max wait bounds how
+         * long continuous typing can defer the update.
+         */
+        long computeDelay(long now, long lastComputeNanos) {
+            long delay = MIN_DELAY_MS;
+            if (lastComputeNanos > 0) {
+                delay += 2 * TimeUnit.NANOSECONDS.toMillis(lastComputeNanos);
+            }
+            if (typingIntervalMs > 0) {
+                delay = Math.max(delay, (long) (typingIntervalMs * 1.5));
             }
+            delay = Math.min(delay, MAX_DELAY_MS);
+            
+            long remainingWait = firstPendingChange + MAX_WAIT_MS - now;
+            return Math.max(0, Math.min(delay, remainingWait));
         }
-        return openProjects.length > 0 ? openProjects[0] : null;
     }
 }
@@ -0,0 +1,39 @@
+package com.example.diffplugin.actions;
+
+import com.example.diffplugin.services.DiffMetrics;
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes the inline diff metrics to idea.log so they can be attached to bug reports
+ */
+public class DumpDiffMetricsAction extends AnAction {
+    private static final Logger LOG = Logger.getInstance(DumpDiffMetricsAction.class);
+    
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) return;
+        
+        DiffMetrics metrics = project.getService(DiffMetrics.class);
+        LOG.info("Inline diff metrics for " + project.getName() + ":\n" + metrics.format());
+        
+        Notifications.Bus.notify(new Notification(
+            "DiffPlugin",
+            "Diff Plugin",
+            "Inline diff metrics were written to idea.log",
+            NotificationType.INFORMATION
+        ), project);
+    }
+    
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null);
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.diffplugin.model;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Diff of a document against its baseline at a given modification stamp.
+ * Block ranges are stored in a single int array, sorted by line, and refer to lines of the
+ * shared baseline and current snapshots. {@link DiffBlock} views are created on demand, and
+ * looking up the block of a line is a binary search.
+ */
+public final class FileDiff {
+    private static final String BLOCK_ID_PREFIX = "diff_";
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    // Each block occupies RANGE_SIZE ints: start, end, old start, old end
+    private static final int RANGE_SIZE = 4;
+    private static final int START = 0;
+    private static final int END = 1;
+    private static final int OLD_START = 2;
+    private static final int OLD_END = 3;
+    private static final byte NO_STAGE = 0;
+    private static final DiffBlock.Stage[] STAGES = DiffBlock.Stage.values();
+    
+    private final ContentSnapshot baseline;
+    private final ContentSnapshot currentContent;
+    private final int[] ranges;
+    private final int blockCount;
+    // Stage ordinal + 1 per block, NO_STAGE or no array at all when not classified
+    private final byte[] stages;
+    private volatile String[] blockIds;
+    private final List<DiffBlock> blockView = new AbstractList<>() {
+        @Override
+        public DiffBlock get(int index) {
+            return getBlock(index);
+        }
+        
+        @Override
+        public int size() {
+            return blockCount;
+        }
+    };
+    
+    private FileDiff(ContentSnapshot baseline, ContentSnapshot currentContent, int[] ranges, int blockCount,
+                     byte[] stages) {
+        this.baseline = baseline;
+        this.currentContent = currentContent;
+        this.ranges = ranges;
+        this.blockCount = blockCount;
+        this.stages = stages;
+    }
+    
+    public static Builder builder(ContentSnapshot baseline, ContentSnapshot currentContent) {
+        return new Builder(baseline, currentContent);
+    }
+    
+    public ContentSnapshot getBaseline() {
+        return baseline;
+    }
+    
+    public ContentSnapshot getCurrentContent() {
+        return currentContent;
+    }
+    
+    public long getModificationStamp() {
+        return currentContent.getModificationStamp();
+    }
+    
+    public int getBlockCount() {
+        return blockCount;
+    }
+    
+    public boolean isEmpty() {
+        return blockCount == 0;
+    }
+    
+    public int getStartLine(int index) {
+        return ranges[index * RANGE_SIZE + START];
+    }
+    
+    public int getEndLine(int index) {
+        return ranges[index * RANGE_SIZE + END];
+    }
+    
+    public int getOldStartLine(int index) {
+        return ranges[index * RANGE_SIZE + OLD_START];
+    }
+    
+    public int getOldEndLine(int index) {
+        return ranges[index * RANGE_SIZE + OLD_END];
+    }
+    
+    /**
+     * Stage of the block, null if the diff was not classified against the index
+     */
+    public @Nullable DiffBlock.Stage getStage(int index) {
+        return stages != null && stages[index] != NO_STAGE ? STAGES[stages[index] - 1] : null;
+    }
+    
+    /**
+     * The same blocks with the given stages, which are in block order
+     */
+    public FileDiff withStages(DiffBlock.Stage[] blockStages) {
+        byte[] encoded = new byte[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            encoded[i] = blockStages[i] != null ? (byte) (blockStages[i].ordinal() + 1) : NO_STAGE;
+        }
+        return new FileDiff(baseline, currentContent, ranges, blockCount, encoded);
+    }
+    
+    /**
+     * Change in line count introduced by the block
+     */
+    public int getLineDelta(int index) {
+        return (getEndLine(index) - getStartLine(index)) - (getOldEndLine(index) - getOldStartLine(index));
+    }
+    
+    public DiffBlock getBlock(int index) {
+        int startLine = getStartLine(index);
+        int endLine = getEndLine(index);
+        int oldStartLine = getOldStartLine(index);
+        int oldEndLine = getOldEndLine(index);
+        return new DiffBlock(
+            determineType(oldStartLine != oldEndLine, startLine != endLine),
+            startLine, endLine, oldStartLine, oldEndLine,
+            baseline, currentContent, getBlockId(index), getStage(index)
+        );
+    }
+    
+    /**
+     * Identity of a block derived from its content, independent of its position.
+     * The same hunk keeps its id when edits above it move it; identical hunks are told apart by
+     * their occurrence number.
+     */
+    public String getBlockId(int index) {
+        String[] ids = blockIds;
+        if (ids == null) {
+            ids = computeBlockIds();
+            blockIds = ids;
+        }
+        return ids[index];
+    }
+    
+    /**
+     * Index of the block with the given id, or -1
+     */
+    public int indexOfBlock(String blockId) {
+        for (int i = 0; i < blockCount; i++) {
+            if (getBlockId(i).equals(blockId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private String[] computeBlockIds() {
+        String[] ids = new String[blockCount];
+        Map<Long, Integer> occurrences = new HashMap<>();
+        for (int i = 0; i < blockCount; i++) {
+            // Line counts tell an empty line apart from no line at all
+            long hash = FNV_OFFSET_BASIS;
+            hash = (hash ^ (getOldEndLine(i) - getOldStartLine(i))) * FNV_PRIME;
+            hash = (hash ^ (getEndLine(i) - getStartLine(i))) * FNV_PRIME;
+            hash = hashText(hash, baseline.getLines(getOldStartLine(i), getOldEndLine(i)));
+            hash = (hash ^ 0xff) * FNV_PRIME; // separates the old and the new side
+            hash = hashText(hash, currentContent.getLines(getStartLine(i), getEndLine(i)));
+            
+            int occurrence = occurrences.merge(hash, 1, Integer::sum) - 1;
+            String id = BLOCK_ID_PREFIX + Long.toHexString(hash);
+            ids[i] = occurrence == 0 ? id : id + "_" + occurrence;
+        }
+        return ids;
+    }
+    
+    private static long hashText(long hash, CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+    
+    /**
+     * Lightweight list view over the blocks, each access creates a new {@link DiffBlock}
+     */
+    public List<DiffBlock> getDiffBlocks() {
+        return blockView;
+    }
+    
+    /**
+     * Finds the block covering the given line of the current content
+     */
+    public @Nullable DiffBlock findBlockAtLine(int line) {
+        int index = findBlockIndex(line);
+        return index >= 0 ? getBlock(index) : null;
+    }
+    
+    public boolean hasChangesAtLine(int line) {
+        return findBlockIndex(line) >= 0;
+    }
+    
+    /**
+     * Index of the first block ending after the given line, or the block count if there is none
+     */
+    public int findFirstBlockAfter(int line) {
+        int low = 0;
+        int high = blockCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getEffectiveEndLine(mid) <= line) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+    
+    private int findBlockIndex(int line) {
+        int index = findFirstBlockAfter(line);
+        return index < blockCount && getStartLine(index) <= line ? index : -1;
+    }
+    
+    /**
+     * A deletion has no lines of its own and is shown on the line that follows it
+     */
+    private int getEffectiveEndLine(int index) {
+        return Math.max(getEndLine(index), getStartLine(index) + 1);
+    }
+    
+    private static DiffBlock.Type determineType(boolean hasOldContent, boolean hasNewContent) {
+        if (hasOldContent && hasNewContent) {
+            return DiffBlock.Type.MODIFIED;
+        } else if (hasNewContent) {
+            return DiffBlock.Type.ADDED;
+        } else {
+            return DiffBlock.Type.DELETED;
+        }
+    }
+    
+    /**
+     * Collects block ranges in line order
+     */
+    public static final class Builder {
+        private final ContentSnapshot baseline;
+        private final ContentSnapshot currentContent;
+        private int[] ranges = new int[8 * RANGE_SIZE];
+        private int blockCount;
+        private byte[] stages;
+        
+        private Builder(ContentSnapshot baseline, ContentSnapshot currentContent) {
+            this.baseline = baseline;
+            this.currentContent = currentContent;
+        }
+        
+        public Builder addBlock(int startLine, int endLine, int oldStartLine, int oldEndLine) {
+            int offset = blockCount * RANGE_SIZE;
+            if (offset + RANGE_SIZE > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[offset + START] = startLine;
+            ranges[offset + END] = endLine;
+            ranges[offset + OLD_START] = oldStartLine;
+            ranges[offset + OLD_END] = oldEndLine;
+            if (stages != null && blockCount >= stages.length) {
+                stages = Arrays.copyOf(stages, ranges.length / RANGE_SIZE);
+            }
+            blockCount++;
+            return this;
+        }
+        
+        /**
+         * Copies a block of another diff, moving it by lineDelta lines in the current content.
+         * The block keeps its stage until the diff is classified again.
+         */
+        public Builder addBlock(FileDiff source, int index, int lineDelta) {
+            addBlock(source.getStartLine(index) + lineDelta, source.getEndLine(index) + lineDelta,
+                source.getOldStartLine(index), source.getOldEndLine(index));
+            if (source.stages != null && source.stages[index] != NO_STAGE) {
+                if (stages == null) {
+                    stages = new byte[ranges.length / RANGE_SIZE];
+                }
+                stages[blockCount - 1] = source.stages[index];
+            }
+            return this;
+        }
+        
+        public int getBlockCount() {
+            return blockCount;
+        }
+        
+        public FileDiff build() {
+            return new FileDiff(baseline, currentContent, Arrays.copyOf(ranges, blockCount * RANGE_SIZE), blockCount,
+                stages != null ? Arrays.copyOf(stages, blockCount) : null);
+        }
+    }
+}
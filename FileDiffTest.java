@@ -0,0 +1,93 @@
+package com.example.diffplugin.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileDiffTest {
+    // a B c x d f g: "b" modified, "x" added, "e" deleted before "f"
+    private final FileDiff fileDiff = FileDiff.builder(
+            text("a", "b", "c", "d", "e", "f", "g"),
+            text("a", "B", "c", "x", "d", "f", "g"))
+        .addBlock(1, 2, 1, 2)
+        .addBlock(3, 4, 3, 3)
+        .addBlock(5, 5, 4, 5)
+        .build();
+    
+    @Test
+    void findsBlockAtLine() {
+        assertNull(fileDiff.findBlockAtLine(0));
+        assertEquals(DiffBlock.Type.MODIFIED, fileDiff.findBlockAtLine(1).getType());
+        assertNull(fileDiff.findBlockAtLine(2));
+        assertEquals(DiffBlock.Type.ADDED, fileDiff.findBlockAtLine(3).getType());
+        assertNull(fileDiff.findBlockAtLine(4));
+        assertNull(fileDiff.findBlockAtLine(6));
+    }
+    
+    @Test
+    void showsDeletionOnTheFollowingLine() {
+        DiffBlock deletion = fileDiff.findBlockAtLine(5);
+        
+        assertEquals(DiffBlock.Type.DELETED, deletion.getType());
+        assertEquals(4, deletion.getOldStartLine());
+        assertTrue(fileDiff.hasChangesAtLine(5));
+        assertFalse(fileDiff.hasChangesAtLine(4));
+    }
+    
+    @Test
+    void findsFirstBlockAfterLine() {
+        assertEquals(0, fileDiff.findFirstBlockAfter(0));
+        assertEquals(0, fileDiff.findFirstBlockAfter(1));
+        assertEquals(1, fileDiff.findFirstBlockAfter(2));
+        assertEquals(1, fileDiff.findFirstBlockAfter(3));
+        assertEquals(2, fileDiff.findFirstBlockAfter(4));
+        assertEquals(2, fileDiff.findFirstBlockAfter(5));
+        assertEquals(3, fileDiff.findFirstBlockAfter(6));
+    }
+    
+    @Test
+    void blockIdDoesNotDependOnPosition() {
+        FileDiff moved = FileDiff.builder(
+                text("new", "lines", "a", "b", "c"),
+                text("new", "lines", "a", "B", "c"))
+            .addBlock(3, 4, 3, 4)
+            .build();
+        
+        assertEquals(fileDiff.getBlockId(0), moved.getBlockId(0));
+        assertNotEquals(fileDiff.getBlockId(0), fileDiff.getBlockId(1));
+    }
+    
+    @Test
+    void identicalBlocksGetOccurrenceSuffix() {
+        FileDiff repeated = FileDiff.builder(text("a", "b", "a", "b"), text("a", "B", "a", "B"))
+            .addBlock(1, 2, 1, 2)
+            .addBlock(3, 4, 3, 4)
+            .build();
+        
+        String first = repeated.getBlockId(0);
+        assertEquals(first + "_1", repeated.getBlockId(1));
+        assertEquals(0, repeated.indexOfBlock(first));
+        assertEquals(1, repeated.indexOfBlock(first + "_1"));
+        assertEquals(-1, repeated.indexOfBlock(first + "_2"));
+    }
+    
+    @Test
+    void addedAndDeletedEmptyLinesHaveDifferentIds() {
+        FileDiff added = FileDiff.builder(text("a", "b"), text("a", "", "b"))
+            .addBlock(1, 2, 1, 1)
+            .build();
+        FileDiff deleted = FileDiff.builder(text("a", "", "b"), text("a", "b"))
+            .addBlock(1, 1, 1, 2)
+            .build();
+        
+        assertNotEquals(added.getBlockId(0), deleted.getBlockId(0));
+    }
+    
+    private static ContentSnapshot text(String... lines) {
+        return ContentSnapshot.of(String.join("\n", lines));
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.diffplugin.services;
+
+import com.intellij.openapi.vfs.VirtualFile;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.function.Consumer;
+
+/**
+ * Computes the id git would give a text as a blob, {@code sha1("blob <length>\0" + bytes)}, without
+ * running git. The text is encoded the way the file is saved: its line separator, charset and
+ * byte order mark. Clean and smudge filters are not applied, so a filtered file never matches
+ * and simply takes the regular diff path. The text is streamed through the encoder in chunks,
+ * never copied as a whole.
+ */
+final class GitBlobId {
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final int CHUNK_SIZE = 8192;
+    
+    private GitBlobId() {
+    }
+    
+    static String compute(CharSequence text, VirtualFile file) {
+        String detectedSeparator = file.getDetectedLineSeparator();
+        String separator = detectedSeparator != null ? detectedSeparator : "\n";
+        Charset charset = file.getCharset();
+        byte[] bom = file.getBOM();
+        
+        // The header needs the length up front, so the text is encoded twice: counted, then digested
+        long[] length = {bom != null ? bom.length : 0};
+        encode(text, separator, charset, bytes -> length[0] += bytes.remaining());
+        
+        MessageDigest sha1 = newSha1();
+        sha1.update(("blob " + length[0] + "\0").getBytes(StandardCharsets.US_ASCII));
+        if (bom != null) {
+            sha1.update(bom);
+        }
+        encode(text, separator, charset, sha1::update);
+        return toHex(sha1.digest());
+    }
+    
+    /**
+     * Encodes the text with the given line separator chunk by chunk and passes each encoded
+     * chunk to the sink. Malformed and unmappable characters are replaced, like
+     * {@link String#getBytes(Charset)} does.
+     */
+    private static void encode(CharSequence text, String separator, Charset charset, Consumer<ByteBuffer> sink) {
+        CharsetEncoder encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+        ByteBuffer bytes = ByteBuffer.allocate((int) Math.ceil(CHUNK_SIZE * encoder.maxBytesPerChar()));
+        int position = 0;
+        int length = text.length();
+        
+        while (true) {
+            while (position < length && chars.remaining() >= separator.length()) {
+                char c = text.charAt(position++);
+                if (c == '\n') {
+                    chars.put(separator);
+                } else {
+                    chars.put(c);
+                }
+            }
+            boolean endOfInput = position == length;
+            
+            chars.flip();
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, bytes, endOfInput);
+                drain(bytes, sink);
+            } while (result.isOverflow());
+            // A surrogate pair split by the chunk boundary stays for the next round
+            chars.compact();
+            
+            if (endOfInput) {
+                while (encoder.flush(bytes).isOverflow()) {
+                    drain(bytes, sink);
+                }
+                drain(bytes, sink);
+                return;
+            }
+        }
+    }
+    
+    private static void drain(ByteBuffer bytes, Consumer<ByteBuffer> sink) {
+        bytes.flip();
+        if (bytes.hasRemaining()) {
+            sink.accept(bytes);
+        }
+        bytes.clear();
+    }
+    
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // Every JRE is required to provide SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
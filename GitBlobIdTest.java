@@ -0,0 +1,77 @@
+package com.example.diffplugin.services;
+
+import com.intellij.testFramework.LightVirtualFile;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Expected ids come from {@code git hash-object --no-filters} on files saved with the same
+ * charset, byte order mark and line separator. Texts use "\n" like a document does.
+ */
+class GitBlobIdTest {
+    private static final byte[] UTF_8_BOM = {(byte) 0xef, (byte) 0xbb, (byte) 0xbf};
+    private static final byte[] UTF_16LE_BOM = {(byte) 0xff, (byte) 0xfe};
+    private static final String TEXT = "first line\nsecond line\n";
+    
+    @Test
+    void emptyText() {
+        assertEquals("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391",
+            GitBlobId.compute("", file(StandardCharsets.UTF_8, null, null)));
+    }
+    
+    @Test
+    void lineFeeds() {
+        assertEquals("06fcdd77c9348567c50638b30d406500f521c304",
+            GitBlobId.compute(TEXT, file(StandardCharsets.UTF_8, null, "\n")));
+    }
+    
+    @Test
+    void undetectedSeparatorMeansLineFeeds() {
+        assertEquals("06fcdd77c9348567c50638b30d406500f521c304",
+            GitBlobId.compute(TEXT, file(StandardCharsets.UTF_8, null, null)));
+    }
+    
+    @Test
+    void crlfLineSeparators() {
+        assertEquals("42d6ab7898301b32aad70191b30eff94e73a2934",
+            GitBlobId.compute(TEXT, file(StandardCharsets.UTF_8, null, "\r\n")));
+    }
+    
+    @Test
+    void utf8WithBomAndCrlf() {
+        assertEquals("bc58b61274453016b61588ae8077598b7ac8f35e",
+            GitBlobId.compute("h\u00e9llo w\u00f6rld\nzweite Zeile\n", file(StandardCharsets.UTF_8, UTF_8_BOM, "\r\n")));
+    }
+    
+    @Test
+    void utf16WithBomAndSurrogatePair() {
+        String text = "h\u00e9llo\n\u20ac and \ud83d\ude00\nlast line without separator";
+        assertEquals("7e79c8d2a5313327233664cb9f35d47f0bab181b",
+            GitBlobId.compute(text, file(StandardCharsets.UTF_16LE, UTF_16LE_BOM, "\r\n")));
+    }
+    
+    /**
+     * Spans many encoder chunks, so separators and surrogate pairs fall on chunk boundaries
+     */
+    @Test
+    void textLargerThanOneChunk() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            text.append("l\u00ednea ").append(i).append(" \ud83d\ude00\n");
+        }
+        assertEquals("f95f12d6ee16118b37cd0be18bb9ed1693e61237",
+            GitBlobId.compute(text, file(StandardCharsets.UTF_8, null, "\r\n")));
+    }
+    
+    private static LightVirtualFile file(Charset charset, byte[] bom, String lineSeparator) {
+        LightVirtualFile file = new LightVirtualFile("test.txt", "");
+        file.setCharset(charset);
+        file.setBOM(bom);
+        file.setDetectedLineSeparator(lineSeparator);
+        return file;
+    }
+}
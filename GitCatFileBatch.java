@@ -0,0 +1,237 @@
+package com.example.diffplugin.services;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Long-lived {@code git cat-file --batch} processes of a single repository.
+ * Object requests are written to a process' stdin and blobs are streamed back from its stdout,
+ * so fetching many blobs costs one process instead of one per file, and related objects can be
+ * requested in a single round trip. A process serves one request at a time; concurrent requests,
+ * e.g. from the parallel project scan, get a process each, up to a small limit, and wait beyond
+ * it. Processes are started lazily, restarted transparently if they die, and their stderr is
+ * logged.
+ */
+public final class GitCatFileBatch implements Disposable {
+    private static final Logger LOG = Logger.getInstance(GitCatFileBatch.class);
+    private static final int MAX_PROCESSES = 4;
+    private static final long WAIT_INTERVAL_MS = 50;
+    
+    private final String gitExecutable;
+    private final String workingDirectory;
+    
+    private final Deque<Connection> idleConnections = new ArrayDeque<>();
+    private int connectionCount;
+    private boolean disposed;
+    
+    public GitCatFileBatch(@NotNull String gitExecutable, @NotNull String workingDirectory) {
+        this.gitExecutable = gitExecutable;
+        this.workingDirectory = workingDirectory;
+    }
+    
+    /**
+     * Reads an object such as {@code <revision>:<path>} or a blob id.
+     * Returns null if the object does not exist.
+     */
+    public @Nullable Blob readObject(@NotNull String objectName) throws IOException {
+        return readObjects(List.of(objectName)).get(0);
+    }
+    
+    /**
+     * Reads several objects in one round trip: all names are written before the first response
+     * is read. The result has the order of the names, with null for objects that do not exist.
+     */
+    public List<Blob> readObjects(@NotNull List<String> objectNames) throws IOException {
+        for (String objectName : objectNames) {
+            if (objectName.indexOf('\n') >= 0) {
+                throw new IOException("Object name must not contain line breaks: " + objectName);
+            }
+        }
+        
+        Connection connection = acquire();
+        try {
+            return connection.request(objectNames);
+        } catch (IOException e) {
+            // The process may have died between requests, retry once with a fresh one
+            LOG.debug("git cat-file --batch failed in " + workingDirectory + ", restarting", e);
+            connection.stop();
+            try {
+                return connection.request(objectNames);
+            } catch (IOException retryFailure) {
+                // Don't hand out a process that may be stuck in the middle of a response
+                connection.stop();
+                throw retryFailure;
+            }
+        } finally {
+            release(connection);
+        }
+    }
+    
+    private synchronized Connection acquire() throws IOException {
+        while (true) {
+            if (disposed) {
+                throw new IOException("git cat-file reader is disposed");
+            }
+            if (!idleConnections.isEmpty()) {
+                return idleConnections.pop();
+            }
+            if (connectionCount < MAX_PROCESSES) {
+                connectionCount++;
+                return new Connection();
+            }
+            try {
+                wait(WAIT_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for git cat-file", e);
+            }
+            ProgressManager.checkCanceled();
+        }
+    }
+    
+    private synchronized void release(Connection connection) {
+        if (disposed) {
+            connection.stop();
+            return;
+        }
+        idleConnections.push(connection);
+        notifyAll();
+    }
+    
+    @Override
+    public synchronized void dispose() {
+        disposed = true;
+        // Connections in use are stopped when they are released
+        for (Connection connection : idleConnections) {
+            connection.stop();
+        }
+        idleConnections.clear();
+        notifyAll();
+    }
+    
+    private void logErrors(InputStream errors) {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(errors, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                LOG.warn("git cat-file --batch in " + workingDirectory + ": " + line);
+            }
+        } catch (IOException e) {
+            // The process was stopped
+        }
+    }
+    
+    /**
+     * One cat-file process, used by one request at a time
+     */
+    private final class Connection {
+        private Process process;
+        private OutputStream requests;
+        private InputStream responses;
+        
+        List<Blob> request(List<String> objectNames) throws IOException {
+            ensureStarted();
+            
+            StringBuilder batch = new StringBuilder();
+            for (String objectName : objectNames) {
+                batch.append(objectName).append('\n');
+            }
+            requests.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            requests.flush();
+            
+            List<Blob> blobs = new ArrayList<>(objectNames.size());
+            for (String objectName : objectNames) {
+                blobs.add(readResponse(objectName));
+            }
+            return blobs;
+        }
+        
+        private @Nullable Blob readResponse(String objectName) throws IOException {
+            // "<id> <type> <size>" or "<name> missing"
+            String header = readLine();
+            if (header.endsWith(" missing") || header.endsWith(" ambiguous")) {
+                return null;
+            }
+            
+            String[] parts = header.split(" ");
+            if (parts.length != 3) {
+                throw new IOException("Unexpected git cat-file header: " + header);
+            }
+            
+            int size = Integer.parseInt(parts[2]);
+            byte[] content = responses.readNBytes(size);
+            if (content.length != size || responses.read() != '\n') {
+                throw new EOFException("Truncated git cat-file response for " + objectName);
+            }
+            return new Blob(parts[0], parts[1], content);
+        }
+        
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+            int b;
+            while ((b = responses.read()) != '\n') {
+                if (b < 0) {
+                    throw new EOFException("git cat-file closed its output");
+                }
+                line.write(b);
+            }
+            return line.toString(StandardCharsets.UTF_8);
+        }
+        
+        private void ensureStarted() throws IOException {
+            if (process != null && process.isAlive()) {
+                return;
+            }
+            stop();
+            
+            try {
+                GeneralCommandLine commandLine = new GeneralCommandLine(gitExecutable, "cat-file", "--batch")
+                    .withWorkDirectory(workingDirectory);
+                process = commandLine.toProcessBuilder().start();
+            } catch (Exception e) {
+                throw new IOException("Failed to start git cat-file --batch in " + workingDirectory, e);
+            }
+            requests = process.getOutputStream();
+            responses = new BufferedInputStream(process.getInputStream(), 64 * 1024);
+            // Drained for the lifetime of the process, so that a full pipe never blocks it
+            InputStream errors = process.getErrorStream();
+            AppExecutorUtil.getAppExecutorService().execute(() -> logErrors(errors));
+            LOG.debug("Started git cat-file --batch in " + workingDirectory);
+        }
+        
+        void stop() {
+            if (process != null) {
+                try {
+                    requests.close();
+                } catch (IOException ignored) {
+                    // The process is destroyed below anyway
+                }
+                process.destroy();
+            }
+            process = null;
+            requests = null;
+            responses = null;
+        }
+    }
+    
+    public record Blob(String objectId, String type, byte[] content) {
+    }
+}
@@ -1,32 +1,80 @@
 package com.example.diffplugin.services;
 
+import com.example.diffplugin.model.ContentSnapshot;
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.CapturingProcessHandler;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.ide.util.PropertiesComponent;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.vfs.VfsUtilCore;
 import com.intellij.openapi.vfs.VirtualFile;
 import git4idea.GitUtil;
 import git4idea.repo.GitRepository;
 import git4idea.repo.GitRepositoryManager;
-import git4idea.commands.Git;
-import git4idea.commands.GitCommand;
-import git4idea.commands.GitLineHandler;
+import git4idea.config.GitExecutableManager;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import org.jetbrains.annotations.Nullable;
+import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
-public final class GitService {
+public final class GitService implements Disposable {
     private static final Logger LOG = Logger.getInstance(GitService.class);
+    private static final long BASELINE_CACHE_MAX_BYTES = 32L * 1024 * 1024;
+    private static final String BASELINE_REVISION_KEY = "unified.diff.baseline.revision";
+    private static final String STAGED_MODE_KEY = "unified.diff.staged.mode";
+    private static final String HEAD = "HEAD";
+    // Cache revision of index contents, followed by the index file's timestamp; never a commit hash
+    private static final String INDEX_REVISION_PREFIX = ":index@";
+    public static final String MERGE_BASE_PREFIX = "merge-base:";
+    private static final int MAX_CACHED_TREES = 4;
+    private static final int GIT_TIMEOUT_MS = 60_000;
     
     private final Project project;
+    private final BaselineCache baselineCache = new BaselineCache(BASELINE_CACHE_MAX_BYTES);
+    private final Map<String, String> knownHeadRevisions = new ConcurrentHashMap<>();
+    private final Map<String, GitCatFileBatch> catFileBatches = new ConcurrentHashMap<>();
+    private final Map<String, String> resolvedBaselines = new ConcurrentHashMap<>();
+    // Roots the selected baseline does not resolve in, not retried until it or the repository changes
+    private final Set<String> unresolvedBaselines = ConcurrentHashMap.newKeySet();
+    private final Map<String, Map<String, String>> revisionTrees = new LinkedHashMap<>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+            return size() > MAX_CACHED_TREES;
+        }
+    };
     
     public GitService(Project project) {
         this.project = project;
+        project.getMessageBus().connect(this)
+            .subscribe(GitRepository.GIT_REPO_CHANGE, this::onRepositoryChanged);
     }
     
     /**
-     * Gets the content of a file from the last commit (HEAD)
+     * Gets the content of a file in the baseline revision, HEAD unless another one is selected.
+     * Contents are cached per repository root, resolved baseline commit and relative path; the
+     * blob of a path is looked up in the commit's tree, which is listed once per commit.
      */
-    public Optional<String> getLastCommitContent(VirtualFile file) {
+    public Optional<ContentSnapshot> getBaselineContent(VirtualFile file) {
         try {
             GitRepository repository = getRepository(file);
             if (repository == null) {
@@ -34,32 +82,374 @@ public final class GitService {
                 return Optional.empty();
             }
             
-            String relativePath = repository.getRoot().toNioPath().relativize(file.toNioPath()).toString();
+            String relativePath = VfsUtilCore.getRelativePath(file, repository.getRoot());
             if (relativePath == null) {
                 LOG.warn("Could not get relative path for file: " + file.getPath());
                 return Optional.empty();
             }
             
-            GitLineHandler handler = new GitLineHandler(project, repository.getRoot(), GitCommand.SHOW);
-            handler.addParameters("HEAD:" + relativePath);
-            handler.setSilent(true);
+            String revision = resolveBaselineRevision(repository);
+            if (revision == null) {
+                // Fresh repository without commits or an unknown revision, nothing to compare against
+                return Optional.empty();
+            }
+            
+            String rootPath = repository.getRoot().getPath();
+            if (repository.getCurrentRevision() != null) {
+                knownHeadRevisions.putIfAbsent(rootPath, repository.getCurrentRevision());
+            }
+            
+            BaselineCache.Key key = new BaselineCache.Key(rootPath, revision, relativePath);
+            ContentSnapshot cached = baselineCache.get(key);
+            if (cached != null) {
+                return Optional.of(cached);
+            }
+            
+            // Persisted by an earlier session, no git process needed
+            DiffSnapshotStore store = project.getService(DiffSnapshotStore.class);
+            String blobId = store.getBlobId(rootPath, revision, relativePath);
+            CharSequence storedText = blobId != null ? store.getBlobText(blobId) : null;
+            if (storedText != null) {
+                ContentSnapshot content = ContentSnapshot.of(storedText);
+                baselineCache.put(key, content);
+                return Optional.of(content);
+            }
+            
+            if (blobId == null) {
+                blobId = getRevisionTree(repository, revision).get(relativePath);
+                if (blobId == null) {
+                    LOG.debug("File is not part of the baseline revision: " + file.getPath());
+                    return Optional.empty();
+                }
+                store.putBlobId(rootPath, revision, relativePath, blobId);
+            }
+            
+            // The index version is about to be needed as well, get both in one round trip
+            List<String> objectNames = new ArrayList<>(2);
+            objectNames.add(blobId);
+            BaselineCache.Key indexKey = isStagedModeEnabled() ? getIndexKey(repository, relativePath) : null;
+            if (indexKey != null && !baselineCache.contains(indexKey)) {
+                objectNames.add(":" + relativePath);
+            }
+            List<GitCatFileBatch.Blob> blobs = getCatFileBatch(repository).readObjects(objectNames);
+            if (objectNames.size() > 1) {
+                baselineCache.put(indexKey, decodeIndexBlob(blobs.get(1), file));
+            }
+            
+            GitCatFileBatch.Blob blob = blobs.get(0);
+            if (blob == null) {
+                LOG.warn("Blob " + blobId + " of " + file.getPath() + " is missing");
+                return Optional.empty();
+            }
+            
+            // Decode with the file's charset and normalize line separators, like the document does
+            CharSequence text = LoadTextUtil.getTextByBinaryPresentation(blob.content(), file);
+            ContentSnapshot content = ContentSnapshot.of(text);
+            baselineCache.put(key, content);
+            store.putBlobText(blobId, text);
+            return Optional.of(content);
+            
+        } catch (ProcessCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            LOG.warn("Failed to get baseline content for file: " + file.getPath(), e);
+            return Optional.empty();
+        }
+    }
+    
+    /**
+     * Gets the staged content of a file, read from the index. Fetched together with the baseline
+     * content when that is read from git, and cached until the index file changes. A file that
+     * is not in the index, e.g. after {@code git rm --cached}, has an empty staged content.
+     */
+    public Optional<ContentSnapshot> getIndexContent(VirtualFile file) {
+        try {
+            GitRepository repository = getRepository(file);
+            String relativePath = repository != null ? VfsUtilCore.getRelativePath(file, repository.getRoot()) : null;
+            if (relativePath == null) {
+                return Optional.empty();
+            }
+            
+            BaselineCache.Key key = getIndexKey(repository, relativePath);
+            ContentSnapshot cached = baselineCache.get(key);
+            if (cached != null) {
+                return Optional.of(cached);
+            }
             
-            String content = Git.getInstance().runCommand(handler).getOutputOrThrow();
+            ContentSnapshot content = decodeIndexBlob(getCatFileBatch(repository).readObject(":" + relativePath), file);
+            baselineCache.put(key, content);
             return Optional.of(content);
             
+        } catch (ProcessCanceledException e) {
+            throw e;
         } catch (Exception e) {
-            LOG.warn("Failed to get last commit content for file: " + file.getPath(), e);
+            LOG.warn("Failed to get staged content for file: " + file.getPath(), e);
             return Optional.empty();
         }
     }
     
     /**
-     * Gets the current content of a file
+     * Whether diffs tell staged changes apart from unstaged ones
+     */
+    public boolean isStagedModeEnabled() {
+        return PropertiesComponent.getInstance(project).getBoolean(STAGED_MODE_KEY, false);
+    }
+    
+    /**
+     * Turns the staged mode of the project on or off. Callers recompute the diffs afterwards.
+     */
+    public void setStagedModeEnabled(boolean enabled) {
+        PropertiesComponent.getInstance(project).setValue(STAGED_MODE_KEY, enabled, false);
+    }
+    
+    /**
+     * Index contents are keyed by the index file's timestamp, so staging from anywhere, the
+     * command line included, never serves a stale version
+     */
+    private static BaselineCache.Key getIndexKey(GitRepository repository, String relativePath) {
+        // The index lives next to HEAD, also in the git dir of a linked worktree
+        File indexFile = new File(repository.getRepositoryFiles().getHeadFile().getParentFile(), "index");
+        return new BaselineCache.Key(repository.getRoot().getPath(),
+            INDEX_REVISION_PREFIX + indexFile.lastModified(), relativePath);
+    }
+    
+    private static ContentSnapshot decodeIndexBlob(@Nullable GitCatFileBatch.Blob blob, VirtualFile file) {
+        return blob != null
+            ? ContentSnapshot.of(LoadTextUtil.getTextByBinaryPresentation(blob.content(), file))
+            : ContentSnapshot.of("");
+    }
+    
+    /**
+     * Id of the file's blob in the baseline revision, from the snapshot store or the revision's
+     * tree. Takes at most one git run per baseline commit and none per file, and no content is
+     * read. Null if the file is not part of the baseline. May run git, so it must not be called
+     * under a read action; {@link #getBaselineBlobId} is the cached-only variant.
+     */
+    public @Nullable String findBaselineBlobId(VirtualFile file) {
+        try {
+            GitRepository repository = getRepository(file);
+            String relativePath = repository != null ? VfsUtilCore.getRelativePath(file, repository.getRoot()) : null;
+            String revision = relativePath != null ? resolveBaselineRevision(repository) : null;
+            if (revision == null) {
+                return null;
+            }
+            
+            String rootPath = repository.getRoot().getPath();
+            DiffSnapshotStore store = project.getService(DiffSnapshotStore.class);
+            String blobId = store.getBlobId(rootPath, revision, relativePath);
+            if (blobId == null) {
+                blobId = getRevisionTree(repository, revision).get(relativePath);
+                if (blobId != null) {
+                    store.putBlobId(rootPath, revision, relativePath, blobId);
+                }
+            }
+            return blobId;
+            
+        } catch (ProcessCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            LOG.warn("Failed to look up baseline blob of file: " + file.getPath(), e);
+            return null;
+        }
+    }
+    
+    /**
+     * Baseline content if it is held in memory or in the snapshot store. Never starts git, so it
+     * may be called under a read action; {@link #getBaselineContent} fills the caches.
+     */
+    public @Nullable ContentSnapshot getCachedBaselineContent(VirtualFile file) {
+        GitRepository repository = getRepository(file);
+        String relativePath = repository != null ? VfsUtilCore.getRelativePath(file, repository.getRoot()) : null;
+        String revision = relativePath != null ? getCachedBaselineRevision(repository) : null;
+        if (revision == null) {
+            return null;
+        }
+        
+        String rootPath = repository.getRoot().getPath();
+        BaselineCache.Key key = new BaselineCache.Key(rootPath, revision, relativePath);
+        ContentSnapshot cached = baselineCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        DiffSnapshotStore store = project.getService(DiffSnapshotStore.class);
+        String blobId = store.getBlobId(rootPath, revision, relativePath);
+        CharSequence storedText = blobId != null ? store.getBlobText(blobId) : null;
+        if (storedText == null) {
+            return null;
+        }
+        ContentSnapshot content = ContentSnapshot.of(storedText);
+        baselineCache.put(key, content);
+        return content;
+    }
+    
+    /**
+     * Staged content if it is cached for the current index, see {@link #getIndexContent}.
+     * Never starts git.
+     */
+    public @Nullable ContentSnapshot getCachedIndexContent(VirtualFile file) {
+        GitRepository repository = getRepository(file);
+        String relativePath = repository != null ? VfsUtilCore.getRelativePath(file, repository.getRoot()) : null;
+        return relativePath != null ? baselineCache.get(getIndexKey(repository, relativePath)) : null;
+    }
+    
+    /**
+     * Id of the file's blob in the baseline revision if it is known from an earlier read, in this
+     * session or an earlier one, or from a tree listing still in memory. Never starts git.
+     */
+    public @Nullable String getBaselineBlobId(VirtualFile file) {
+        GitRepository repository = getRepository(file);
+        String relativePath = repository != null ? VfsUtilCore.getRelativePath(file, repository.getRoot()) : null;
+        String revision = relativePath != null ? getCachedBaselineRevision(repository) : null;
+        if (revision == null) {
+            return null;
+        }
+        String rootPath = repository.getRoot().getPath();
+        String blobId = project.getService(DiffSnapshotStore.class).getBlobId(rootPath, revision, relativePath);
+        if (blobId == null) {
+            synchronized (revisionTrees) {
+                Map<String, String> tree = revisionTrees.get(rootPath + '\0' + revision);
+                blobId = tree != null ? tree.get(relativePath) : null;
+            }
+        }
+        return blobId;
+    }
+    
+    /**
+     * Baseline commit of the repository as far as it is known without running git
+     */
+    private @Nullable String getCachedBaselineRevision(GitRepository repository) {
+        return HEAD.equals(getBaselineRevision())
+            ? repository.getCurrentRevision()
+            : resolvedBaselines.get(repository.getRoot().getPath());
+    }
+    
+    /**
+     * The revision diffs are computed against: {@code HEAD}, any branch, tag or commit, or
+     * {@code merge-base:<ref>} for the merge base of HEAD and a ref
+     */
+    public String getBaselineRevision() {
+        return PropertiesComponent.getInstance(project).getValue(BASELINE_REVISION_KEY, HEAD);
+    }
+    
+    /**
+     * Selects the baseline revision of the project. Callers recompute the diffs afterwards.
+     */
+    public void setBaselineRevision(String revision) {
+        PropertiesComponent.getInstance(project).setValue(BASELINE_REVISION_KEY, revision, HEAD);
+        resolvedBaselines.clear();
+        unresolvedBaselines.clear();
+    }
+    
+    /**
+     * Commit hash of the baseline revision in the repository, resolved once until the repository
+     * changes. Null if the repository has no commits or the revision does not exist in it; a
+     * revision that does not exist is not looked up again until the baseline or the repository
+     * changes.
+     */
+    private @Nullable String resolveBaselineRevision(GitRepository repository) throws IOException, ExecutionException {
+        String baseline = getBaselineRevision();
+        if (HEAD.equals(baseline)) {
+            // Read from the repository's state files, no git process needed
+            return repository.getCurrentRevision();
+        }
+        
+        String rootPath = repository.getRoot().getPath();
+        String resolved = resolvedBaselines.get(rootPath);
+        if (resolved != null || unresolvedBaselines.contains(rootPath)) {
+            return resolved;
+        }
+        
+        resolved = resolveRevision(repository, baseline);
+        if (resolved == null) {
+            LOG.warn("Baseline revision " + baseline + " does not exist in " + rootPath);
+            unresolvedBaselines.add(rootPath);
+            return null;
+        }
+        resolvedBaselines.put(rootPath, resolved);
+        return resolved;
+    }
+    
+    /**
+     * Commit hash of a revision, as accepted by {@link #setBaselineRevision}, in the repository.
+     * Null if it does not exist there. Not cached and runs git, so it must not be called under a
+     * read action.
+     */
+    public @Nullable String resolveRevision(GitRepository repository, String revision) throws IOException, ExecutionException {
+        if (HEAD.equals(revision)) {
+            return repository.getCurrentRevision();
+        }
+        if (revision.startsWith(MERGE_BASE_PREFIX)) {
+            try {
+                String mergeBase = runGit(repository, "merge-base", "HEAD", revision.substring(MERGE_BASE_PREFIX.length())).trim();
+                return mergeBase.isEmpty() ? null : mergeBase;
+            } catch (IOException e) {
+                // Unknown ref or no common history
+                LOG.debug(e);
+                return null;
+            }
+        }
+        GitCatFileBatch.Blob commit = getCatFileBatch(repository).readObject(revision + "^{commit}");
+        return commit != null ? commit.objectId() : null;
+    }
+    
+    /**
+     * Path to blob id map of every file in a commit, from a single {@code git ls-tree} run.
+     * The trees of the last few commits used are kept.
      */
-    public Optional<String> getCurrentContent(VirtualFile file) {
+    private Map<String, String> getRevisionTree(GitRepository repository, String revision) throws IOException, ExecutionException {
+        String treeKey = repository.getRoot().getPath() + '\0' + revision;
+        synchronized (revisionTrees) {
+            Map<String, String> tree = revisionTrees.get(treeKey);
+            if (tree != null) {
+                return tree;
+            }
+        }
+        
+        String listing = runGit(repository, "ls-tree", "-r", "-z", "--full-tree", revision);
+        Map<String, String> tree = new HashMap<>();
+        // "<mode> <type> <id>\t<path>", entries separated by NUL and paths never quoted
+        for (String entry : listing.split("\0")) {
+            int tab = entry.indexOf('\t');
+            if (tab < 0) {
+                continue;
+            }
+            String[] fields = entry.substring(0, tab).split(" ");
+            if (fields.length == 3 && "blob".equals(fields[1])) {
+                tree.put(entry.substring(tab + 1), fields[2]);
+            }
+        }
+        synchronized (revisionTrees) {
+            revisionTrees.put(treeKey, tree);
+        }
+        return tree;
+    }
+    
+    private String runGit(GitRepository repository, String... parameters) throws IOException, ExecutionException {
+        GeneralCommandLine commandLine = new GeneralCommandLine(GitExecutableManager.getInstance().getPathToGit(project))
+            .withParameters(parameters)
+            .withWorkDirectory(repository.getRoot().getPath())
+            .withCharset(StandardCharsets.UTF_8);
+        ProcessOutput output = new CapturingProcessHandler(commandLine).runProcess(GIT_TIMEOUT_MS);
+        if (output.isTimeout() || output.getExitCode() != 0) {
+            throw new IOException("git " + String.join(" ", parameters) + " failed: " + output.getStderr().trim());
+        }
+        return output.getStdout();
+    }
+    
+    /**
+     * Gets the current content of a file as a snapshot of its document, including unsaved changes.
+     * Falls back to loading the file when it has no document.
+     */
+    public Optional<ContentSnapshot> getCurrentContent(VirtualFile file) {
         try {
-            byte[] content = file.contentsToByteArray();
-            return Optional.of(new String(content, StandardCharsets.UTF_8));
+            return Optional.of(ReadAction.compute(() -> {
+                Document document = FileDocumentManager.getInstance().getDocument(file);
+                return document != null
+                    ? ContentSnapshot.of(document)
+                    : ContentSnapshot.of(LoadTextUtil.loadText(file));
+            }));
+        } catch (ProcessCanceledException e) {
+            throw e;
         } catch (Exception e) {
             LOG.warn("Failed to read current content of file: " + file.getPath(), e);
             return Optional.empty();
@@ -73,6 +463,59 @@ public final class GitService {
         return getRepository(file) != null;
     }
     
+    /**
+     * Hit, miss and eviction counts of the baseline content cache
+     */
+    public BaselineCache.Stats getBaselineCacheStats() {
+        return baselineCache.getStats();
+    }
+    
+    private void onRepositoryChanged(GitRepository repository) {
+        String rootPath = repository.getRoot().getPath();
+        // Branches may have moved or been fetched, resolve the baseline again on next use
+        resolvedBaselines.remove(rootPath);
+        unresolvedBaselines.remove(rootPath);
+        String revision = repository.getCurrentRevision();
+        String previous = revision != null
+            ? knownHeadRevisions.put(rootPath, revision)
+            : knownHeadRevisions.remove(rootPath);
+        
+        if (previous != null && !previous.equals(revision)) {
+            LOG.debug("HEAD moved in " + rootPath + ", dropping cached baselines");
+            baselineCache.invalidateRoot(rootPath);
+        }
+        
+        if (isStagedModeEnabled()) {
+            // Files may have been staged or unstaged, their blocks need to be classified again
+            ApplicationManager.getApplication().invokeLater(
+                () -> project.getService(InlineDiffService.class).updateAllOpenEditors(), project.getDisposed());
+        }
+    }
+    
+    /**
+     * Returns the shared cat-file processes of the repository, they live as long as this service
+     */
+    private GitCatFileBatch getCatFileBatch(GitRepository repository) {
+        return catFileBatches.computeIfAbsent(repository.getRoot().getPath(), rootPath -> {
+            String gitExecutable = GitExecutableManager.getInstance().getPathToGit(project);
+            GitCatFileBatch batch = new GitCatFileBatch(gitExecutable, rootPath);
+            Disposer.register(this, batch);
+            return batch;
+        });
+    }
+    
+    @Override
+    public void dispose() {
+        baselineCache.clear();
+        knownHeadRevisions.clear();
+        catFileBatches.clear();
+        resolvedBaselines.clear();
+        unresolvedBaselines.clear();
+        synchronized (revisionTrees) {
+            revisionTrees.clear();
+        }
+    }
+    
     private GitRepository getRepository(VirtualFile file) {
         GitRepositoryManager manager = GitRepositoryManager.getInstance(project);
         return manager.getRepositoryForFile(file);
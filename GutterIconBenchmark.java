@@ -0,0 +1,132 @@
+package com.example.diffplugin.ui;
+
+import com.example.diffplugin.model.ContentSnapshot;
+import com.example.diffplugin.model.FileDiff;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gutter repaint of many blocks: the shared pre-rendered icons against the previous per-renderer
+ * icons, which derived a font and copied the graphics on every paint.
+ * Run with {@code ./gradlew jmh}; the gc profiler's {@code gc.alloc.rate.norm} is the allocation
+ * per repaint.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class GutterIconBenchmark {
+    @Param({"100", "500"})
+    private int blockCount;
+    
+    private InlineDiffRenderer[] renderers;
+    private Icon[] legacyIcons;
+    private BufferedImage canvas;
+    private Graphics2D graphics;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        StringBuilder baselineText = new StringBuilder();
+        StringBuilder currentText = new StringBuilder();
+        for (int i = 0; i < blockCount * 3; i++) {
+            baselineText.append("line ").append(i).append('\n');
+            currentText.append(i % 3 == 0 ? "edited " : "line ").append(i).append('\n');
+        }
+        ContentSnapshot baseline = ContentSnapshot.of(baselineText);
+        ContentSnapshot current = ContentSnapshot.of(currentText);
+        FileDiff.Builder builder = FileDiff.builder(baseline, current);
+        for (int i = 0; i < blockCount; i++) {
+            builder.addBlock(i * 3, i * 3 + 1, i * 3, i * 3 + 1);
+        }
+        FileDiff fileDiff = builder.build();
+        
+        renderers = new InlineDiffRenderer[blockCount];
+        legacyIcons = new Icon[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            renderers[i] = new InlineDiffRenderer(fileDiff.getBlock(i));
+            legacyIcons[i] = new LegacyIcon(DiffIcons.colorOf(fileDiff.getBlock(i).getType()), "~");
+        }
+        
+        canvas = new BufferedImage(32, 32 * blockCount, BufferedImage.TYPE_INT_ARGB);
+        graphics = canvas.createGraphics();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        graphics.dispose();
+    }
+    
+    /**
+     * Painting the icons of all blocks and reading their tooltips, as a gutter repaint with hover does
+     */
+    @Benchmark
+    public void repaintShared(Blackhole blackhole) {
+        for (int i = 0; i < renderers.length; i++) {
+            renderers[i].getIcon().paintIcon(null, graphics, 0, i * 32);
+            blackhole.consume(renderers[i].getTooltipText());
+        }
+    }
+    
+    @Benchmark
+    public void repaintLegacy(Blackhole blackhole) {
+        for (int i = 0; i < legacyIcons.length; i++) {
+            legacyIcons[i].paintIcon(null, graphics, 0, i * 32);
+            blackhole.consume(String.format("%s - Click to accept/reject changes", "Modification"));
+        }
+    }
+    
+    /**
+     * The icon as every renderer used to build it
+     */
+    private static final class LegacyIcon implements Icon {
+        private final Color color;
+        private final String symbol;
+        
+        LegacyIcon(Color color, String symbol) {
+            this.color = color;
+            this.symbol = symbol;
+        }
+        
+        @Override
+        public void paintIcon(Component c, Graphics g, int x, int y) {
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g2.setColor(color);
+            g2.fillRoundRect(x + 2, y + 2, getIconWidth() - 4, getIconHeight() - 4, 4, 4);
+            g2.setColor(Color.WHITE);
+            g2.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 8));
+            FontMetrics fm = g2.getFontMetrics();
+            g2.drawString(symbol, x + (getIconWidth() - fm.stringWidth(symbol)) / 2, y + (getIconHeight() + fm.getAscent()) / 2 - 1);
+            g2.dispose();
+        }
+        
+        @Override
+        public int getIconWidth() {
+            return 16;
+        }
+        
+        @Override
+        public int getIconHeight() {
+            return 16;
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package com.example.diffplugin.ui;
 
 import com.example.diffplugin.model.DiffBlock;
+import com.example.diffplugin.services.DiffCalculationService;
+import com.example.diffplugin.services.DiffModelService;
+import com.example.diffplugin.services.InlineDiffService;
+import com.intellij.diff.fragments.DiffFragment;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.CommonDataKeys;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
@@ -14,6 +20,7 @@ import com.intellij.openapi.ui.popup.JBPopupFactory;
 import com.intellij.openapi.ui.popup.ListPopup;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.ui.awt.RelativePoint;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.util.ui.JBUI;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -22,25 +29,27 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.util.Arrays;
+import java.util.List;
 
+/**
+ * Gutter renderer of one diff block. Renderers are flyweights: they hold the block and share
+ * their icon, everything the popup needs is taken from the click event.
+ */
 public class InlineDiffRenderer extends GutterIconRenderer {
-    private final Project project;
-    private final Editor editor;
-    private final VirtualFile file;
     private final DiffBlock diffBlock;
-    private final Icon diffIcon;
+    private String tooltipText;
     
-    public InlineDiffRenderer(Project project, Editor editor, VirtualFile file, DiffBlock diffBlock) {
-        this.project = project;
-        this.editor = editor;
-        this.file = file;
+    public InlineDiffRenderer(DiffBlock diffBlock) {
         this.diffBlock = diffBlock;
-        this.diffIcon = createDiffIcon();
+    }
+    
+    public DiffBlock getDiffBlock() {
+        return diffBlock;
     }
     
     @Override
     public @NotNull Icon getIcon() {
-        return diffIcon;
+        return DiffIcons.forBlock(diffBlock);
     }
     
     @Override
@@ -50,8 +59,10 @@ public class InlineDiffRenderer extends GutterIconRenderer {
     
     @Override
     public @Nullable String getTooltipText() {
-        String typeText = getTypeDescription();
-        return String.format("%s - Click to accept/reject changes", typeText);
+        if (tooltipText == null) {
+            tooltipText = getTypeDescription() + getStageSuffix() + " - Click to accept/reject changes";
+        }
+        return tooltipText;
     }
     
     @Override
@@ -65,7 +76,13 @@ public class InlineDiffRenderer extends GutterIconRenderer {
     }
     
     private void showDiffPopup(AnActionEvent e) {
-        JPanel popupContent = createPopupContent();
+        Project project = e.getProject();
+        Editor editor = e.getData(CommonDataKeys.EDITOR);
+        VirtualFile file = editor != null ? FileDocumentManager.getInstance().getFile(editor.getDocument()) : null;
+        if (project == null || file == null) {
+            return;
+        }
+        JPanel popupContent = createPopupContent(project, editor, file);
         
         JBPopupFactory.getInstance()
             .createComponentPopupBuilder(popupContent, null)
@@ -77,14 +94,14 @@ public class InlineDiffRenderer extends GutterIconRenderer {
             .show(new RelativePoint((MouseEvent) e.getInputEvent()));
     }
     
-    private JPanel createPopupContent() {
+    private JPanel createPopupContent(Project project, Editor editor, VirtualFile file) {
         JPanel panel = new JPanel(new BorderLayout());
         panel.setBorder(JBUI.Borders.empty(10));
         panel.setPreferredSize(new Dimension(500, 300));
         
         // Header with diff type and line info
         JPanel headerPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
-        JLabel headerLabel = new JLabel(getTypeDescription());
+        JLabel headerLabel = new JLabel(getTypeDescription() + getStageSuffix());
         headerLabel.setFont(headerLabel.getFont().deriveFont(Font.BOLD, 14f));
         headerLabel.setForeground(getTypeColor());
         headerPanel.add(headerLabel);
@@ -93,17 +110,20 @@ public class InlineDiffRenderer extends GutterIconRenderer {
         // Content panel showing old vs new
         JPanel contentPanel = new JPanel(new GridLayout(1, 2, 10, 0));
         
+        JTextArea oldTextArea = null;
         if (diffBlock.isDeletion() || diffBlock.isModification()) {
-            JPanel oldPanel = createContentPanel("Original (will be removed):", 
-                diffBlock.getOldContent(), new Color(255, 240, 240));
-            contentPanel.add(oldPanel);
+            Color background = new Color(255, 240, 240);
+            oldTextArea = createTextArea(diffBlock.getOldContent(), background);
+            contentPanel.add(createContentPanel("Original (will be removed):", oldTextArea, background));
         }
         
+        JTextArea newTextArea = null;
         if (diffBlock.isAddition() || diffBlock.isModification()) {
-            JPanel newPanel = createContentPanel("New (current):", 
-                diffBlock.getNewContent(), new Color(240, 255, 240));
-            contentPanel.add(newPanel);
+            Color background = new Color(240, 255, 240);
+            newTextArea = createTextArea(diffBlock.getNewContent(), background);
+            contentPanel.add(createContentPanel("New (current):", newTextArea, background));
         }
+        highlightInnerFragments(project, oldTextArea, newTextArea);
         
         panel.add(contentPanel, BorderLayout.CENTER);
         
@@ -111,18 +131,18 @@ public class InlineDiffRenderer extends GutterIconRenderer {
         JPanel buttonPanel = new JPanel(new FlowLayout());
         
         JButton acceptButton = new JButton("Accept Changes");
-        acceptButton.setBackground(new Color(76, 175, 80));
+        acceptButton.setBackground(DiffIcons.ADDED_COLOR);
         acceptButton.setForeground(Color.WHITE);
         acceptButton.addActionListener(e -> {
-            acceptChanges();
+            acceptChanges(project, editor, file);
             closePopup();
         });
         
         JButton rejectButton = new JButton("Reject Changes");
-        rejectButton.setBackground(new Color(244, 67, 54));
+        rejectButton.setBackground(DiffIcons.DELETED_COLOR);
         rejectButton.setForeground(Color.WHITE);
         rejectButton.addActionListener(e -> {
-            rejectChanges();
+            rejectChanges(project, editor, file);
             closePopup();
         });
         
@@ -133,17 +153,35 @@ public class InlineDiffRenderer extends GutterIconRenderer {
         return panel;
     }
     
-    private JPanel createContentPanel(String title, java.util.List<String> lines, Color backgroundColor) {
-        JPanel panel = new JPanel(new BorderLayout());
-        panel.setBorder(JBUI.Borders.compound(
-            JBUI.Borders.customLine(backgroundColor.darker(), 2),
-            JBUI.Borders.empty(5)
-        ));
-        
-        JLabel titleLabel = new JLabel(title);
-        titleLabel.setFont(titleLabel.getFont().deriveFont(Font.BOLD, 12f));
-        panel.add(titleLabel, BorderLayout.NORTH);
-        
+    /**
+     * Marks the word-level changes in the text areas. They are computed in the background the
+     * first time a popup shows the block, the areas are highlighted once they are ready.
+     */
+    private void highlightInnerFragments(Project project, @Nullable JTextArea oldTextArea, @Nullable JTextArea newTextArea) {
+        DiffCalculationService diffService = project.getService(DiffCalculationService.class);
+        List<DiffFragment> innerFragments = diffService.getCachedInnerFragments(diffBlock);
+        if (innerFragments != null) {
+            highlightInnerFragments(innerFragments, oldTextArea, newTextArea);
+            return;
+        }
+        AppExecutorUtil.getAppExecutorService().execute(() -> {
+            List<DiffFragment> fragments = diffService.getInnerFragments(diffBlock);
+            ApplicationManager.getApplication().invokeLater(
+                () -> highlightInnerFragments(fragments, oldTextArea, newTextArea), ModalityState.any());
+        });
+    }
+    
+    private static void highlightInnerFragments(List<DiffFragment> innerFragments,
+                                                @Nullable JTextArea oldTextArea, @Nullable JTextArea newTextArea) {
+        if (oldTextArea != null) {
+            InnerFragmentHighlighter.highlight(oldTextArea, innerFragments, true, Integer.MAX_VALUE);
+        }
+        if (newTextArea != null) {
+            InnerFragmentHighlighter.highlight(newTextArea, innerFragments, false, Integer.MAX_VALUE);
+        }
+    }
+    
+    private static JTextArea createTextArea(List<String> lines, Color backgroundColor) {
         StringBuilder content = new StringBuilder();
         for (String line : lines) {
             content.append(line).append("\n");
@@ -154,6 +192,19 @@ public class InlineDiffRenderer extends GutterIconRenderer {
         textArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
         textArea.setBackground(backgroundColor);
         textArea.setLineWrap(false);
+        return textArea;
+    }
+    
+    private JPanel createContentPanel(String title, JTextArea textArea, Color backgroundColor) {
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.setBorder(JBUI.Borders.compound(
+            JBUI.Borders.customLine(backgroundColor.darker(), 2),
+            JBUI.Borders.empty(5)
+        ));
+        
+        JLabel titleLabel = new JLabel(title);
+        titleLabel.setFont(titleLabel.getFont().deriveFont(Font.BOLD, 12f));
+        panel.add(titleLabel, BorderLayout.NORTH);
         
         JScrollPane scrollPane = new JScrollPane(textArea);
         scrollPane.setPreferredSize(new Dimension(200, 150));
@@ -162,58 +213,54 @@ public class InlineDiffRenderer extends GutterIconRenderer {
         return panel;
     }
     
-    private void acceptChanges() {
+    private void acceptChanges(Project project, Editor editor, VirtualFile file) {
         // Current content is already in place, so we just need to mark as accepted
         ApplicationManager.getApplication().invokeLater(() -> {
+            Document document = editor.getDocument();
+            project.getService(DiffModelService.class).acceptBlock(document, diffBlock.getBlockId());
+            
             // Remove the diff highlight since changes are accepted
-            removeDiffHighlight();
-            showNotification("Changes accepted for " + getTypeDescription().toLowerCase());
+            removeDiffHighlight(project, editor, file);
+            showNotification(project, "Changes accepted for " + getTypeDescription().toLowerCase());
         });
     }
     
-    private void rejectChanges() {
+    private void rejectChanges(Project project, Editor editor, VirtualFile file) {
         ApplicationManager.getApplication().invokeLater(() -> {
-            WriteCommandAction.runWriteCommandAction(project, () -> {
-                try {
-                    Document document = editor.getDocument();
-                    
-                    // Calculate line offsets
-                    int startOffset = document.getLineStartOffset(diffBlock.getStartLine());
-                    int endOffset = diffBlock.getEndLine() < document.getLineCount() - 1 
-                        ? document.getLineStartOffset(diffBlock.getEndLine() + 1)
-                        : document.getTextLength();
-                    
-                    // Replace with original content
-                    StringBuilder originalContent = new StringBuilder();
-                    for (String line : diffBlock.getOldContent()) {
-                        originalContent.append(line).append("\n");
-                    }
-                    
-                    document.replaceString(startOffset, endOffset, originalContent.toString());
-                    
-                    // Remove the diff highlight
-                    removeDiffHighlight();
-                    showNotification("Changes rejected for " + getTypeDescription().toLowerCase());
-                    
-                } catch (Exception ex) {
-                    showNotification("Failed to reject changes: " + ex.getMessage());
-                }
-            });
+            Document document = editor.getDocument();
+            DiffModelService diffModel = project.getService(DiffModelService.class);
+            boolean[] rejected = new boolean[1];
+            
+            try {
+                // Replaces the block with its original content and drops it from the model
+                WriteCommandAction.runWriteCommandAction(project, "Reject Changes", null,
+                    () -> rejected[0] = diffModel.rejectBlock(document, diffBlock.getBlockId()));
+            } catch (Exception ex) {
+                showNotification(project, "Failed to reject changes: " + ex.getMessage());
+                return;
+            }
+            
+            if (rejected[0]) {
+                removeDiffHighlight(project, editor, file);
+                showNotification(project, "Changes rejected for " + getTypeDescription().toLowerCase());
+            } else {
+                // The block is gone from the current diff, show what is there now
+                project.getService(InlineDiffService.class).updateInlineDiff(editor, file);
+                showNotification(project, "Failed to reject changes: the diff has changed");
+            }
         });
     }
     
-    private void removeDiffHighlight() {
-        // This would be implemented to remove the specific highlighter
-        // For now, we'll trigger a refresh of the entire diff view
-        project.getService(com.example.diffplugin.services.InlineDiffService.class)
-            .updateInlineDiff(editor, file);
+    private void removeDiffHighlight(Project project, Editor editor, VirtualFile file) {
+        // The model is already up to date, only the changed highlighters are touched
+        project.getService(InlineDiffService.class).refreshFromModel(editor.getDocument(), file);
     }
     
     private void closePopup() {
         // The popup will close automatically when buttons are clicked
     }
     
-    private void showNotification(String message) {
+    private static void showNotification(Project project, String message) {
         com.intellij.notification.Notifications.Bus.notify(
             new com.intellij.notification.Notification(
                 "DiffPlugin",
@@ -234,56 +281,12 @@ public class InlineDiffRenderer extends GutterIconRenderer {
         }
     }
     
-    private Color getTypeColor() {
-        switch (diffBlock.getType()) {
-            case ADDED: return new Color(76, 175, 80);
-            case DELETED: return new Color(244, 67, 54);
-            case MODIFIED: return new Color(255, 152, 0);
-            default: return Color.BLACK;
-        }
+    private String getStageSuffix() {
+        return diffBlock.getStage() != null ? ", " + diffBlock.getStage().getDisplayName() : "";
     }
     
-    private Icon createDiffIcon() {
-        // Create a simple colored square icon based on diff type
-        return new Icon() {
-            @Override
-            public void paintIcon(Component c, Graphics g, int x, int y) {
-                Graphics2D g2 = (Graphics2D) g.create();
-                g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                
-                g2.setColor(getTypeColor());
-                g2.fillRoundRect(x + 2, y + 2, getIconWidth() - 4, getIconHeight() - 4, 4, 4);
-                
-                g2.setColor(Color.WHITE);
-                g2.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 8));
-                String symbol = getTypeSymbol();
-                FontMetrics fm = g2.getFontMetrics();
-                int symbolX = x + (getIconWidth() - fm.stringWidth(symbol)) / 2;
-                int symbolY = y + (getIconHeight() + fm.getAscent()) / 2 - 1;
-                g2.drawString(symbol, symbolX, symbolY);
-                
-                g2.dispose();
-            }
-            
-            @Override
-            public int getIconWidth() {
-                return 16;
-            }
-            
-            @Override
-            public int getIconHeight() {
-                return 16;
-            }
-        };
-    }
-    
-    private String getTypeSymbol() {
-        switch (diffBlock.getType()) {
-            case ADDED: return "+";
-            case DELETED: return "-";
-            case MODIFIED: return "~";
-            default: return "?";
-        }
+    private Color getTypeColor() {
+        return DiffIcons.colorOf(diffBlock.getType());
     }
     
     @Override
@@ -291,7 +294,8 @@ public class InlineDiffRenderer extends GutterIconRenderer {
         if (this == obj) return true;
         if (obj == null || getClass() != obj.getClass()) return false;
         InlineDiffRenderer that = (InlineDiffRenderer) obj;
-        return diffBlock.getBlockId().equals(that.diffBlock.getBlockId());
+        return diffBlock.getBlockId().equals(that.diffBlock.getBlockId())
+            && diffBlock.getStage() == that.diffBlock.getStage();
     }
     
     @Override
@@ -1,128 +1,395 @@
 package com.example.diffplugin.services;
 
 import com.example.diffplugin.model.DiffBlock;
+import com.example.diffplugin.model.FileDiff;
 import com.example.diffplugin.ui.InlineDiffRenderer;
-import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.codeInsight.daemon.DaemonCodeAnalyzer;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.components.Service;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.EditorFactory;
+import com.intellij.openapi.editor.ex.util.EditorUtil;
 import com.intellij.openapi.editor.markup.HighlighterLayer;
 import com.intellij.openapi.editor.markup.MarkupModel;
 import com.intellij.openapi.editor.markup.RangeHighlighter;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.Nullable;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.awt.*;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 @Service
 public final class InlineDiffService {
     private static final Logger LOG = Logger.getInstance(InlineDiffService.class);
+    // Above this many blocks only the blocks around the visible area get highlighters
+    private static final int LAZY_RENDERING_THRESHOLD = 200;
+    private static final int MIN_VIEWPORT_MARGIN_LINES = 50;
+    
     private final Project project;
-    private final Map<Editor, List<RangeHighlighter>> editorHighlighters = new ConcurrentHashMap<>();
+    private final Map<Editor, EditorHighlighters> editorHighlighters = new ConcurrentHashMap<>();
     
     public InlineDiffService(Project project) {
         this.project = project;
     }
     
     public void updateInlineDiff(Editor editor, VirtualFile file) {
-        ApplicationManager.getApplication().invokeLater(() -> {
-            try {
+        updateInlineDiff(editor.getDocument(), file);
+    }
+    
+    /**
+     * Recomputes the diff of a document in the background and refreshes the highlighters of
+     * all its editors. The baseline is fetched from git first, outside of any read action, so
+     * that only the diff itself holds the read lock. Only one computation runs per file; a
+     * computation is cancelled and its result dropped as soon as the document changes.
+     */
+    public void updateInlineDiff(Document document, VirtualFile file) {
+        updateInlineDiff(document, file, AppExecutorUtil.getAppExecutorService());
+    }
+    
+    /**
+     * Same as {@link #updateInlineDiff(Document, VirtualFile)}, computing on the given executor
+     */
+    public void updateInlineDiff(Document document, VirtualFile file, Executor executor) {
+        long modificationStamp = document.getModificationStamp();
+        long requestedAt = System.nanoTime();
+        getMetrics().increment(DiffMetrics.Counter.UPDATES_REQUESTED);
+        
+        executor.execute(() -> {
+            if (project.isDisposed() || document.getModificationStamp() != modificationStamp) {
+                getMetrics().increment(DiffMetrics.Counter.UPDATES_SKIPPED);
+                return;
+            }
+            project.getService(DiffModelService.class).prefetch(file);
+            
+            ReadAction.nonBlocking(() -> computeDiff(document, file))
+                .coalesceBy(this, file)
+                .expireWith(project)
+                .expireWhen(() -> document.getModificationStamp() != modificationStamp)
+                .finishOnUiThread(ModalityState.defaultModalityState(),
+                    fileDiff -> applyDiff(document, file, modificationStamp, requestedAt, fileDiff))
+                .submit(executor);
+        });
+    }
+    
+    /**
+     * Drops all cached diffs and recomputes the diffs of every open editor, e.g. after the
+     * baseline revision or the staged mode changed
+     */
+    public void updateAllOpenEditors() {
+        project.getService(DiffModelService.class).invalidateAll();
+        GitService gitService = project.getService(GitService.class);
+        for (VirtualFile file : FileEditorManager.getInstance(project).getOpenFiles()) {
+            Document document = FileDocumentManager.getInstance().getCachedDocument(file);
+            if (document != null && gitService.isUnderGit(file)) {
+                updateInlineDiff(document, file);
+            }
+        }
+    }
+    
+    /**
+     * Re-applies the model's current diff right away, e.g. after a block was accepted or
+     * rejected. Falls back to a background update if the model has no current diff.
+     */
+    public void refreshFromModel(Document document, VirtualFile file) {
+        FileDiff fileDiff = project.getService(DiffModelService.class).getCachedFileDiff(document);
+        if (fileDiff == null) {
+            updateInlineDiff(document, file);
+            return;
+        }
+        getMetrics().increment(DiffMetrics.Counter.UPDATES_REQUESTED);
+        applyDiff(document, file, document.getModificationStamp(), System.nanoTime(), fileDiff);
+    }
+    
+    private @Nullable FileDiff computeDiff(Document document, VirtualFile file) {
+        try {
+            return project.getService(DiffModelService.class).getFileDiff(document, file);
+        } catch (ProcessCanceledException e) {
+            // A write action interrupted the computation, it is restarted or dropped
+            getMetrics().increment(DiffMetrics.Counter.UPDATES_CANCELLED);
+            throw e;
+        }
+    }
+    
+    private void applyDiff(Document document, VirtualFile file, long modificationStamp, long requestedAt,
+                           @Nullable FileDiff fileDiff) {
+        DiffMetrics metrics = getMetrics();
+        if (document.getModificationStamp() != modificationStamp) {
+            // The document changed while the diff was being committed, a newer update is pending
+            metrics.increment(DiffMetrics.Counter.UPDATES_SKIPPED);
+            return;
+        }
+        
+        long renderStart = System.nanoTime();
+        for (Editor editor : EditorFactory.getInstance().getEditors(document, project)) {
+            if (editor.isDisposed()) {
+                continue;
+            }
+            
+            if (fileDiff == null || fileDiff.isEmpty()) {
                 clearExistingHighlighters(editor);
-                
-                GitService gitService = project.getService(GitService.class);
-                if (!gitService.isUnderGit(file)) {
-                    return;
-                }
-                
-                Optional<String> lastCommitContent = gitService.getLastCommitContent(file);
-                Optional<String> currentContent = gitService.getCurrentContent(file);
-                
-                if (lastCommitContent.isEmpty() || currentContent.isEmpty()) {
-                    return;
-                }
-                
-                // Skip if contents are identical
-                if (lastCommitContent.get().equals(currentContent.get())) {
-                    return;
-                }
-                
-                DiffCalculationService diffService = project.getService(DiffCalculationService.class);
-                List<DiffBlock> diffBlocks = diffService.calculateDiff(
-                    lastCommitContent.get(), 
-                    currentContent.get()
-                );
-                
-                if (!diffBlocks.isEmpty()) {
-                    renderInlineDiffs(editor, file, diffBlocks);
-                }
-                
-            } catch (Exception e) {
-                LOG.warn("Failed to update inline diff for file: " + file.getPath(), e);
+                continue;
+            }
+            
+            EditorHighlighters state = getOrCreateState(editor);
+            state.file = file;
+            state.fileDiff = fileDiff;
+            if (fileDiff.getBlockCount() <= LAZY_RENDERING_THRESHOLD) {
+                reconcileHighlighters(editor, state, 0, fileDiff.getBlockCount());
+            } else {
+                installViewportListener(editor, state);
+                renderVisibleArea(editor, state);
             }
+        }
+        
+        // The gutter markers read the model's diff, re-run them now that it changed
+        PsiFile psiFile = PsiDocumentManager.getInstance(project).getPsiFile(document);
+        if (psiFile != null) {
+            DaemonCodeAnalyzer.getInstance(project).restart(psiFile);
+        }
+        
+        metrics.recordSince(DiffMetrics.Stage.RENDER, renderStart);
+        metrics.recordSince(DiffMetrics.Stage.UPDATE, requestedAt);
+        metrics.increment(DiffMetrics.Counter.UPDATES_APPLIED);
+    }
+    
+    private EditorHighlighters getOrCreateState(Editor editor) {
+        return editorHighlighters.computeIfAbsent(editor, e -> {
+            EditorHighlighters state = new EditorHighlighters();
+            // Drops the highlighters and the viewport listener together with the editor
+            EditorUtil.disposeWithEditor(e, state);
+            Disposer.register(state, () -> editorHighlighters.remove(e, state));
+            return state;
         });
     }
     
     private void clearExistingHighlighters(Editor editor) {
-        List<RangeHighlighter> highlighters = editorHighlighters.get(editor);
-        if (highlighters != null) {
+        EditorHighlighters state = editorHighlighters.get(editor);
+        if (state != null) {
             MarkupModel markupModel = editor.getMarkupModel();
-            for (RangeHighlighter highlighter : highlighters) {
+            for (RangeHighlighter highlighter : state.highlighters.values()) {
                 markupModel.removeHighlighter(highlighter);
             }
-            highlighters.clear();
+            getMetrics().add(DiffMetrics.Counter.HIGHLIGHTERS_REMOVED, state.highlighters.size());
+            state.highlighters.clear();
+            state.fileDiff = null;
+        }
+    }
+    
+    private void installViewportListener(Editor editor, EditorHighlighters state) {
+        if (!state.viewportListenerInstalled) {
+            editor.getScrollingModel().addVisibleAreaListener(event -> onVisibleAreaChanged(editor), state);
+            state.viewportListenerInstalled = true;
+        }
+    }
+    
+    private void onVisibleAreaChanged(Editor editor) {
+        EditorHighlighters state = editorHighlighters.get(editor);
+        if (state == null || state.fileDiff == null || state.fileDiff.getBlockCount() <= LAZY_RENDERING_THRESHOLD) {
+            return;
+        }
+        // Line numbers of an outdated diff no longer match the document, wait for the pending update
+        if (state.fileDiff.getModificationStamp() != editor.getDocument().getModificationStamp()) {
+            return;
+        }
+        
+        int firstLine = getFirstVisibleLine(editor);
+        int lastLine = getLastVisibleLine(editor);
+        if (firstLine < state.renderedFirstLine || lastLine > state.renderedLastLine) {
+            renderVisibleArea(editor, state);
+        }
+    }
+    
+    /**
+     * Materializes highlighters for the blocks in and around the visible area only, blocks that
+     * scrolled far out of view lose theirs. The margin is one screen in each direction so that
+     * scrolling within it does not touch the markup model.
+     */
+    private void renderVisibleArea(Editor editor, EditorHighlighters state) {
+        FileDiff fileDiff = state.fileDiff;
+        int firstLine = getFirstVisibleLine(editor);
+        int lastLine = getLastVisibleLine(editor);
+        int margin = Math.max(MIN_VIEWPORT_MARGIN_LINES, lastLine - firstLine + 1);
+        
+        state.renderedFirstLine = Math.max(0, firstLine - margin);
+        state.renderedLastLine = lastLine + margin;
+        
+        int fromIndex = fileDiff.findFirstBlockAfter(state.renderedFirstLine);
+        int toIndex = fromIndex;
+        while (toIndex < fileDiff.getBlockCount() && fileDiff.getStartLine(toIndex) <= state.renderedLastLine) {
+            toIndex++;
         }
+        reconcileHighlighters(editor, state, fromIndex, toIndex);
+    }
+    
+    private static int getFirstVisibleLine(Editor editor) {
+        Rectangle visibleArea = editor.getScrollingModel().getVisibleArea();
+        return editor.xyToLogicalPosition(new Point(0, visibleArea.y)).line;
     }
     
-    private void renderInlineDiffs(Editor editor, VirtualFile file, List<DiffBlock> diffBlocks) {
-        List<RangeHighlighter> newHighlighters = new ArrayList<>();
+    private static int getLastVisibleLine(Editor editor) {
+        Rectangle visibleArea = editor.getScrollingModel().getVisibleArea();
+        return editor.xyToLogicalPosition(new Point(0, visibleArea.y + visibleArea.height)).line;
+    }
+    
+    /**
+     * Brings the editor's highlighters in line with the blocks in [fromIndex, toIndex) of the
+     * current diff. Highlighters of blocks whose content and range did not change are kept as they
+     * are; highlighter ranges follow document edits on their own, so blocks shifted by edits above
+     * them usually stay untouched too. Only added, removed or moved blocks touch the markup model.
+     */
+    private void reconcileHighlighters(Editor editor, EditorHighlighters state, int fromIndex, int toIndex) {
+        FileDiff fileDiff = state.fileDiff;
+        Map<String, RangeHighlighter> existing = state.highlighters;
+        Map<String, RangeHighlighter> newHighlighters = new HashMap<>(Math.max(16, (toIndex - fromIndex) * 2));
         MarkupModel markupModel = editor.getMarkupModel();
+        Set<String> acceptedBlockIds = project.getService(DiffModelService.class).getAcceptedBlockIds(editor.getDocument());
+        int created = 0;
+        int removed = 0;
         
-        for (DiffBlock diffBlock : diffBlocks) {
+        for (int i = fromIndex; i < toIndex; i++) {
+            String blockId = fileDiff.getBlockId(i);
+            if (acceptedBlockIds.contains(blockId)) {
+                continue;
+            }
             try {
-                InlineDiffRenderer renderer = new InlineDiffRenderer(project, editor, file, diffBlock);
-                
                 // Calculate the line range for this diff block
-                int startOffset = getOffsetForLine(editor, diffBlock.getStartLine());
-                int endOffset = getOffsetForLine(editor, diffBlock.getEndLine() + 1);
+                int startOffset = getOffsetForLine(editor, fileDiff.getStartLine(i));
+                // The end line is exclusive, the block ends where its next line starts
+                int endOffset = getOffsetForLine(editor, fileDiff.getEndLine(i));
+                if (startOffset < 0 || endOffset < startOffset) {
+                    continue;
+                }
                 
-                if (startOffset >= 0 && endOffset >= startOffset) {
-                    RangeHighlighter highlighter = markupModel.addRangeHighlighter(
-                        startOffset,
-                        endOffset,
-                        HighlighterLayer.LAST + 1,
-                        null,
-                        com.intellij.openapi.editor.markup.HighlighterTargetArea.LINES_IN_RANGE
-                    );
-                    
-                    highlighter.setGutterIconRenderer(renderer);
-                    newHighlighters.add(highlighter);
+                RangeHighlighter highlighter = existing.remove(blockId);
+                if (highlighter != null && highlighter.isValid()
+                    && highlighter.getStartOffset() == startOffset && highlighter.getEndOffset() == endOffset) {
+                    refreshRenderer(highlighter, fileDiff, i);
+                    newHighlighters.put(blockId, highlighter);
+                    continue;
                 }
                 
+                if (highlighter != null) {
+                    markupModel.removeHighlighter(highlighter);
+                    removed++;
+                }
+                newHighlighters.put(blockId, addHighlighter(markupModel, fileDiff.getBlock(i), startOffset, endOffset));
+                created++;
+                
             } catch (Exception e) {
-                LOG.warn("Failed to render diff block: " + diffBlock.getBlockId(), e);
+                LOG.warn("Failed to render diff block: " + blockId, e);
             }
         }
         
-        editorHighlighters.put(editor, newHighlighters);
+        // Whatever is left belongs to blocks that no longer exist or are out of view
+        for (RangeHighlighter stale : existing.values()) {
+            markupModel.removeHighlighter(stale);
+        }
+        
+        DiffMetrics metrics = getMetrics();
+        metrics.add(DiffMetrics.Counter.HIGHLIGHTERS_CREATED, created);
+        metrics.add(DiffMetrics.Counter.HIGHLIGHTERS_REUSED, newHighlighters.size() - created);
+        metrics.add(DiffMetrics.Counter.HIGHLIGHTERS_REMOVED, removed + existing.size());
+        state.highlighters = newHighlighters;
     }
     
+    private RangeHighlighter addHighlighter(MarkupModel markupModel, DiffBlock diffBlock, int startOffset, int endOffset) {
+        RangeHighlighter highlighter = markupModel.addRangeHighlighter(
+            startOffset,
+            endOffset,
+            HighlighterLayer.LAST + 1,
+            null,
+            com.intellij.openapi.editor.markup.HighlighterTargetArea.LINES_IN_RANGE
+        );
+        
+        highlighter.setGutterIconRenderer(new InlineDiffRenderer(diffBlock));
+        return highlighter;
+    }
+    
+    /**
+     * Keeps the renderer's block in sync with the line numbers shown in its popup. Renderers of the
+     * same block and stage are equal, so swapping them only repaints the gutter when staging
+     * changed the icon.
+     */
+    private void refreshRenderer(RangeHighlighter highlighter, FileDiff fileDiff, int index) {
+        if (highlighter.getGutterIconRenderer() instanceof InlineDiffRenderer renderer
+            && renderer.getDiffBlock().getStartLine() == fileDiff.getStartLine(index)
+            && renderer.getDiffBlock().getOldStartLine() == fileDiff.getOldStartLine(index)
+            && renderer.getDiffBlock().getStage() == fileDiff.getStage(index)) {
+            return;
+        }
+        highlighter.setGutterIconRenderer(new InlineDiffRenderer(fileDiff.getBlock(index)));
+    }
+    
+    /**
+     * Start offset of the line; the line after the last one starts at the end of the text
+     */
     private int getOffsetForLine(Editor editor, int line) {
         try {
-            if (line < 0 || line >= editor.getDocument().getLineCount()) {
+            Document document = editor.getDocument();
+            if (line < 0 || line > document.getLineCount()) {
                 return -1;
             }
-            return editor.getDocument().getLineStartOffset(line);
+            return line == document.getLineCount() ? document.getTextLength() : document.getLineStartOffset(line);
         } catch (Exception e) {
             return -1;
         }
     }
     
+    /**
+     * Number of highlighters currently shown in all editors
+     */
+    public int getHighlighterCount() {
+        int count = 0;
+        for (EditorHighlighters state : editorHighlighters.values()) {
+            count += state.highlighters.size();
+        }
+        return count;
+    }
+    
+    private DiffMetrics getMetrics() {
+        return project.getService(DiffMetrics.class);
+    }
+    
     public void clearAllDiffs(Editor editor) {
         clearExistingHighlighters(editor);
-        editorHighlighters.remove(editor);
+        EditorHighlighters state = editorHighlighters.remove(editor);
+        if (state != null) {
+            Disposer.dispose(state);
+        }
     }
+    
+    /**
+     * Highlighters of one editor, keyed by block id, and the diff they were rendered from.
+     * Only touched on the EDT.
+     */
+    private static final class EditorHighlighters implements Disposable {
+        private Map<String, RangeHighlighter> highlighters = new HashMap<>();
+        private VirtualFile file;
+        private FileDiff fileDiff;
+        private boolean viewportListenerInstalled;
+        private int renderedFirstLine;
+        private int renderedLastLine = -1;
+        
+        @Override
+        public void dispose() {
+            // The viewport listener and the map entry are registered as children
+        }
+    }
+
 }
@@ -0,0 +1,51 @@
+package com.example.diffplugin.ui;
+
+import com.intellij.diff.fragments.DiffFragment;
+import com.intellij.openapi.diagnostic.Logger;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Highlighter;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Marks the changed words of a modified block in the text areas of the popup and the diff view
+ */
+final class InnerFragmentHighlighter {
+    private static final Logger LOG = Logger.getInstance(InnerFragmentHighlighter.class);
+    private static final Highlighter.HighlightPainter OLD_PAINTER =
+        new DefaultHighlighter.DefaultHighlightPainter(new Color(255, 190, 190));
+    private static final Highlighter.HighlightPainter NEW_PAINTER =
+        new DefaultHighlighter.DefaultHighlightPainter(new Color(180, 235, 180));
+    
+    private InnerFragmentHighlighter() {
+    }
+    
+    /**
+     * Replaces the highlights of the text area with the fragments of one side of the block.
+     * Fragments past {@code limit} are cut off, e.g. when the area only shows a preview.
+     */
+    static void highlight(JTextArea textArea, List<DiffFragment> fragments, boolean oldSide, int limit) {
+        Highlighter highlighter = textArea.getHighlighter();
+        highlighter.removeAllHighlights();
+        int end = Math.min(limit, textArea.getDocument().getLength());
+        for (DiffFragment fragment : fragments) {
+            int fragmentStart = oldSide ? fragment.getStartOffset1() : fragment.getStartOffset2();
+            int fragmentEnd = Math.min(oldSide ? fragment.getEndOffset1() : fragment.getEndOffset2(), end);
+            if (fragmentStart >= end) {
+                break;
+            }
+            if (fragmentStart == fragmentEnd) {
+                continue;
+            }
+            try {
+                highlighter.addHighlight(fragmentStart, fragmentEnd, oldSide ? OLD_PAINTER : NEW_PAINTER);
+            } catch (BadLocationException e) {
+                LOG.warn("Inner fragment outside of the shown text: " + fragmentStart + "-" + fragmentEnd, e);
+                return;
+            }
+        }
+    }
+}
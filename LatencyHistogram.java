@@ -0,0 +1,96 @@
+package com.example.diffplugin.services;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with exponentially growing buckets.
+ * Buckets start at 10 µs and grow by 25%, so percentiles are accurate to within a quarter of
+ * their value while recording costs one atomic increment.
+ */
+public final class LatencyHistogram {
+    private static final long FIRST_BUCKET_NANOS = 10_000;
+    private static final double BUCKET_GROWTH = 1.25;
+    private static final int BUCKET_COUNT = 72;
+    private static final long[] BUCKET_UPPER_BOUNDS = new long[BUCKET_COUNT];
+    
+    static {
+        double bound = FIRST_BUCKET_NANOS;
+        for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+            BUCKET_UPPER_BOUNDS[i] = (long) bound;
+            bound *= BUCKET_GROWTH;
+        }
+        BUCKET_UPPER_BOUNDS[BUCKET_COUNT - 1] = Long.MAX_VALUE;
+    }
+    
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+    
+    public long getCount() {
+        return count.sum();
+    }
+    
+    public long getMeanNanos() {
+        long samples = count.sum();
+        return samples == 0 ? 0 : totalNanos.sum() / samples;
+    }
+    
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+    
+    /**
+     * Upper bound of the bucket holding the given percentile, never more than the maximum seen
+     *
+     * @param percentile between 0 and 100
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long samples = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            samples += counts[i];
+        }
+        if (samples == 0) {
+            return 0;
+        }
+        
+        long rank = Math.max(1, (long) Math.ceil(samples * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(BUCKET_UPPER_BOUNDS[i], getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+    
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+    
+    /**
+     * Index of the first bucket whose upper bound is at least the given latency
+     */
+    private static int bucketOf(long nanos) {
+        int index = Arrays.binarySearch(BUCKET_UPPER_BOUNDS, nanos);
+        return index >= 0 ? index : -index - 1;
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.diffplugin.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps lines of one or more snapshots to small int ids, equal lines get equal ids.
+ * Lines are not copied: each id remembers the first line it was seen at and later lines are
+ * compared against that line's text, so the table costs a few ints per line.
+ */
+public final class LineInterner {
+    private final List<ContentSnapshot> sources = new ArrayList<>(2);
+    
+    // Open addressing table of id + 1, 0 marks a free slot
+    private int[] slots;
+    private int[] idHashes;
+    private int[] idSources;
+    private int[] idLines;
+    private int idCount;
+    
+    public LineInterner(int expectedLines) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedLines) * 2 - 1) << 1;
+        slots = new int[capacity];
+        idHashes = new int[Math.max(16, expectedLines)];
+        idSources = new int[idHashes.length];
+        idLines = new int[idHashes.length];
+    }
+    
+    /**
+     * Returns the ids of lines [startLine, endLine) of the snapshot
+     */
+    public int[] intern(ContentSnapshot content, int startLine, int endLine) {
+        int source = sources.indexOf(content);
+        if (source < 0) {
+            source = sources.size();
+            sources.add(content);
+        }
+        
+        int[] ids = new int[Math.max(0, endLine - startLine)];
+        for (int line = startLine; line < endLine; line++) {
+            ids[line - startLine] = intern(source, content, line);
+        }
+        return ids;
+    }
+    
+    public int getUniqueLineCount() {
+        return idCount;
+    }
+    
+    private int intern(int source, ContentSnapshot content, int line) {
+        int start = content.getLineStart(line);
+        int end = content.getLineEnd(line);
+        int hash = hash(content.getText(), start, end);
+        
+        int mask = slots.length - 1;
+        int slot = mix(hash) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (idHashes[id] == hash && sameLine(id, content.getText(), start, end)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        
+        int id = addId(hash, source, line);
+        slots[slot] = id + 1;
+        if (idCount * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+    
+    private int addId(int hash, int source, int line) {
+        if (idCount == idHashes.length) {
+            int capacity = idHashes.length * 2;
+            idHashes = Arrays.copyOf(idHashes, capacity);
+            idSources = Arrays.copyOf(idSources, capacity);
+            idLines = Arrays.copyOf(idLines, capacity);
+        }
+        idHashes[idCount] = hash;
+        idSources[idCount] = source;
+        idLines[idCount] = line;
+        return idCount++;
+    }
+    
+    private boolean sameLine(int id, CharSequence text, int start, int end) {
+        ContentSnapshot other = sources.get(idSources[id]);
+        int otherStart = other.getLineStart(idLines[id]);
+        int otherEnd = other.getLineEnd(idLines[id]);
+        if (otherEnd - otherStart != end - start) {
+            return false;
+        }
+        
+        CharSequence otherText = other.getText();
+        for (int i = 0; i < end - start; i++) {
+            if (text.charAt(start + i) != otherText.charAt(otherStart + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void rehash() {
+        int[] newSlots = new int[slots.length * 2];
+        int mask = newSlots.length - 1;
+        for (int id = 0; id < idCount; id++) {
+            int slot = mix(idHashes[id]) & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = id + 1;
+        }
+        slots = newSlots;
+    }
+    
+    private static int hash(CharSequence text, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + text.charAt(i);
+        }
+        return hash;
+    }
+    
+    /**
+     * Spreads the bits of a string hash, whose low bits cluster for short lines
+     */
+    private static int mix(int hash) {
+        int h = hash * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
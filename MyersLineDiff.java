@@ -0,0 +1,222 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ContentSnapshot;
+import com.example.diffplugin.model.FileDiff;
+import com.example.diffplugin.model.LineInterner;
+import com.intellij.openapi.progress.ProgressManager;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Linear-space line diff for large files, Myers' divide-and-conquer variant.
+ * Lines are interned to int ids first, so the comparison itself never touches the text and needs
+ * two int arrays plus two diagonal arrays regardless of how many differences there are.
+ * Once the time budget is spent, every remaining sub-problem is reported as one changed block
+ * instead of being refined further.
+ */
+public final class MyersLineDiff {
+    private final int[] oldIds;
+    private final int[] newIds;
+    private final BitSet oldChanged;
+    private final BitSet newChanged;
+    private final int[] forward;
+    private final int[] backward;
+    private final long deadline;
+    private boolean budgetExceeded;
+    
+    private MyersLineDiff(int[] oldIds, int[] newIds, long timeBudgetMs) {
+        this.oldIds = oldIds;
+        this.newIds = newIds;
+        this.oldChanged = new BitSet(oldIds.length);
+        this.newChanged = new BitSet(newIds.length);
+        int diagonals = 2 * ((oldIds.length + newIds.length + 1) / 2) + 2;
+        this.forward = new int[diagonals];
+        this.backward = new int[diagonals];
+        this.deadline = System.nanoTime() + timeBudgetMs * 1_000_000L;
+    }
+    
+    /**
+     * Compares old lines [oldStart, oldEnd) with new lines [newStart, newEnd) and appends the
+     * resulting blocks with absolute line numbers.
+     *
+     * @return false if the time budget ran out and part of the result is coarse
+     */
+    public static boolean compare(FileDiff.Builder builder,
+                                  ContentSnapshot oldContent, int oldStart, int oldEnd,
+                                  ContentSnapshot newContent, int newStart, int newEnd,
+                                  long timeBudgetMs) {
+        LineInterner interner = new LineInterner((oldEnd - oldStart) + (newEnd - newStart));
+        int[] oldIds = interner.intern(oldContent, oldStart, oldEnd);
+        int[] newIds = interner.intern(newContent, newStart, newEnd);
+        return compare(builder, oldIds, oldStart, newIds, newStart, timeBudgetMs);
+    }
+    
+    /**
+     * Compares lines already interned by the caller, e.g. when several texts are compared with
+     * each other and should be hashed only once. Block lines are offset by oldStart and newStart.
+     *
+     * @return false if the time budget ran out and part of the result is coarse
+     */
+    public static boolean compare(FileDiff.Builder builder, int[] oldIds, int oldStart, int[] newIds, int newStart,
+                                  long timeBudgetMs) {
+        MyersLineDiff diff = new MyersLineDiff(oldIds, newIds, timeBudgetMs);
+        diff.compare(0, oldIds.length, 0, newIds.length);
+        diff.appendBlocks(builder, oldStart, newStart);
+        return !diff.budgetExceeded;
+    }
+    
+    private void compare(int oldFrom, int oldTo, int newFrom, int newTo) {
+        while (oldFrom < oldTo && newFrom < newTo && oldIds[oldFrom] == newIds[newFrom]) {
+            oldFrom++;
+            newFrom++;
+        }
+        while (oldFrom < oldTo && newFrom < newTo && oldIds[oldTo - 1] == newIds[newTo - 1]) {
+            oldTo--;
+            newTo--;
+        }
+        
+        if (oldFrom == oldTo || newFrom == newTo || isOverBudget()) {
+            oldChanged.set(oldFrom, oldTo);
+            newChanged.set(newFrom, newTo);
+            return;
+        }
+        
+        long split = findMiddleSnake(oldFrom, oldTo, newFrom, newTo);
+        if (split < 0) {
+            // No common line at all, or out of time
+            oldChanged.set(oldFrom, oldTo);
+            newChanged.set(newFrom, newTo);
+            return;
+        }
+        
+        int oldSplit = oldFrom + (int) (split >>> 32);
+        int newSplit = newFrom + (int) split;
+        compare(oldFrom, oldSplit, newFrom, newSplit);
+        compare(oldSplit, oldTo, newSplit, newTo);
+    }
+    
+    /**
+     * Walks the edit graph from both corners at once until the paths meet, the meeting point lies
+     * on a shortest edit script. Returns it as (old offset << 32 | new offset), relative to the
+     * sub-problem, or -1 if there is none.
+     */
+    private long findMiddleSnake(int oldFrom, int oldTo, int newFrom, int newTo) {
+        int oldLength = oldTo - oldFrom;
+        int newLength = newTo - newFrom;
+        int maxD = (oldLength + newLength + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD + 2;
+        Arrays.fill(forward, 0, length, -1);
+        Arrays.fill(backward, 0, length, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        
+        int delta = oldLength - newLength;
+        // With an odd delta the forward path is the one that completes the overlap
+        boolean checkForward = (delta & 1) != 0;
+        // Diagonals that left the edit graph are skipped from then on
+        int forwardStartTrim = 0;
+        int forwardEndTrim = 0;
+        int backwardStartTrim = 0;
+        int backwardEndTrim = 0;
+        
+        for (int d = 0; d < maxD; d++) {
+            ProgressManager.checkCanceled();
+            if (isOverBudget()) {
+                return -1;
+            }
+            
+            for (int k = -d + forwardStartTrim; k <= d - forwardEndTrim; k += 2) {
+                int index = offset + k;
+                int x = k == -d || (k != d && forward[index - 1] < forward[index + 1])
+                    ? forward[index + 1]
+                    : forward[index - 1] + 1;
+                int y = x - k;
+                while (x < oldLength && y < newLength && oldIds[oldFrom + x] == newIds[newFrom + y]) {
+                    x++;
+                    y++;
+                }
+                forward[index] = x;
+                
+                if (x > oldLength) {
+                    forwardEndTrim += 2;
+                } else if (y > newLength) {
+                    forwardStartTrim += 2;
+                } else if (checkForward) {
+                    int backwardIndex = offset + delta - k;
+                    if (backwardIndex >= 0 && backwardIndex < length && backward[backwardIndex] != -1
+                        && x >= oldLength - backward[backwardIndex]) {
+                        return ((long) x << 32) | y;
+                    }
+                }
+            }
+            
+            for (int k = -d + backwardStartTrim; k <= d - backwardEndTrim; k += 2) {
+                int index = offset + k;
+                // Distances are measured from the end of both sequences
+                int x = k == -d || (k != d && backward[index - 1] < backward[index + 1])
+                    ? backward[index + 1]
+                    : backward[index - 1] + 1;
+                int y = x - k;
+                while (x < oldLength && y < newLength
+                    && oldIds[oldTo - x - 1] == newIds[newTo - y - 1]) {
+                    x++;
+                    y++;
+                }
+                backward[index] = x;
+                
+                if (x > oldLength) {
+                    backwardEndTrim += 2;
+                } else if (y > newLength) {
+                    backwardStartTrim += 2;
+                } else if (!checkForward) {
+                    int forwardIndex = offset + delta - k;
+                    if (forwardIndex >= 0 && forwardIndex < length && forward[forwardIndex] != -1) {
+                        int forwardX = forward[forwardIndex];
+                        int forwardY = offset + forwardX - forwardIndex;
+                        if (forwardX >= oldLength - x) {
+                            return ((long) forwardX << 32) | forwardY;
+                        }
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+    
+    private boolean isOverBudget() {
+        if (!budgetExceeded && System.nanoTime() - deadline > 0) {
+            budgetExceeded = true;
+        }
+        return budgetExceeded;
+    }
+    
+    /**
+     * Pairs unchanged lines of both sides in order, the runs of changed lines between them are
+     * the blocks
+     */
+    private void appendBlocks(FileDiff.Builder builder, int oldStart, int newStart) {
+        int oldLine = 0;
+        int newLine = 0;
+        while (oldLine < oldIds.length || newLine < newIds.length) {
+            if (oldLine < oldIds.length && newLine < newIds.length
+                && !oldChanged.get(oldLine) && !newChanged.get(newLine)) {
+                oldLine++;
+                newLine++;
+                continue;
+            }
+            
+            // Once one side is exhausted the rest of the other side is a single block
+            int oldBlockEnd = newLine == newIds.length ? oldIds.length : nextUnchanged(oldChanged, oldLine, oldIds.length);
+            int newBlockEnd = oldLine == oldIds.length ? newIds.length : nextUnchanged(newChanged, newLine, newIds.length);
+            builder.addBlock(newStart + newLine, newStart + newBlockEnd, oldStart + oldLine, oldStart + oldBlockEnd);
+            oldLine = oldBlockEnd;
+            newLine = newBlockEnd;
+        }
+    }
+    
+    private static int nextUnchanged(BitSet changed, int from, int length) {
+        return Math.min(changed.nextClearBit(from), length);
+    }
+}
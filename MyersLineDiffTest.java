@@ -0,0 +1,122 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ContentSnapshot;
+import com.example.diffplugin.model.FileDiff;
+import com.example.diffplugin.model.LineInterner;
+import com.intellij.diff.comparison.ComparisonManagerImpl;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.example.diffplugin.services.DiffTestSupport.assertDescribes;
+import static com.example.diffplugin.services.DiffTestSupport.countChangedLines;
+import static com.example.diffplugin.services.DiffTestSupport.describe;
+import static com.example.diffplugin.services.DiffTestSupport.snapshot;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MyersLineDiffTest {
+    private static final int ROUNDS = 500;
+    private static final long NO_DEADLINE_MS = 60_000;
+    
+    // Windows this small always go through the comparison manager
+    private final DiffCalculationService diffService = new DiffCalculationService(new ComparisonManagerImpl());
+    
+    @Test
+    void matchesComparisonManagerOnUniqueLines() {
+        DiffTestSupport data = new DiffTestSupport(11);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<String> oldLines = data.uniqueLines(1 + data.random().nextInt(60));
+            List<String> newLines = data.applyRandomEdits(oldLines, 1 + data.random().nextInt(8), true);
+            
+            FileDiff myers = myers(oldLines, newLines, NO_DEADLINE_MS);
+            FileDiff expected = diffService.calculateDiff(snapshot(oldLines), snapshot(newLines));
+            
+            assertEquals(describe(expected), describe(myers), "round " + round);
+        }
+    }
+    
+    /**
+     * Myers finds a shortest edit script, the comparison manager's result can only be as short
+     */
+    @Test
+    void isMinimalOnRepetitiveLines() {
+        DiffTestSupport data = new DiffTestSupport(12);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<String> oldLines = data.repetitiveLines(1 + data.random().nextInt(60));
+            List<String> newLines = data.applyRandomEdits(oldLines, 1 + data.random().nextInt(8), false);
+            
+            FileDiff myers = myers(oldLines, newLines, NO_DEADLINE_MS);
+            FileDiff reference = diffService.calculateDiff(snapshot(oldLines), snapshot(newLines));
+            
+            assertDescribes(myers, oldLines, newLines);
+            int round0 = round;
+            assertTrue(countChangedLines(myers) <= countChangedLines(reference),
+                () -> "round " + round0 + ": " + describe(myers) + " is longer than " + describe(reference));
+        }
+    }
+    
+    @Test
+    void offsetsBlocksByWindowStart() {
+        ContentSnapshot oldContent = snapshot(List.of("header", "a", "b", "c"));
+        ContentSnapshot newContent = snapshot(List.of("header", "extra", "a", "B", "c"));
+        FileDiff.Builder builder = FileDiff.builder(oldContent, newContent);
+        
+        assertTrue(MyersLineDiff.compare(builder, oldContent, 1, 4, newContent, 2, 5, NO_DEADLINE_MS));
+        assertEquals(List.of("3-4/2-3"), describe(builder.build()));
+    }
+    
+    @Test
+    void staysValidWhenBudgetRunsOut() {
+        DiffTestSupport data = new DiffTestSupport(13);
+        List<String> oldLines = data.repetitiveLines(5_000);
+        List<String> newLines = data.repetitiveLines(5_000);
+        
+        // Whether or not the budget is hit, a coarse result must still describe the texts
+        assertDescribes(myers(oldLines, newLines, 0), oldLines, newLines);
+    }
+    
+    @Test
+    void internerGivesEqualLinesEqualIdsAcrossSnapshots() {
+        ContentSnapshot first = ContentSnapshot.of("a\nb\na\n");
+        ContentSnapshot second = ContentSnapshot.of("b\nc\na");
+        LineInterner interner = new LineInterner(4);
+        
+        int[] firstIds = interner.intern(first, 0, first.getLineCount());
+        int[] secondIds = interner.intern(second, 0, second.getLineCount());
+        
+        // The trailing empty line of the first snapshot is a line of its own
+        assertEquals(4, firstIds.length);
+        assertEquals(firstIds[0], firstIds[2]);
+        assertNotEquals(firstIds[0], firstIds[1]);
+        assertEquals(firstIds[1], secondIds[0]);
+        assertEquals(firstIds[0], secondIds[2]);
+        assertEquals(4, interner.getUniqueLineCount());
+    }
+    
+    @Test
+    void internerGrowsPastExpectedLines() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            lines.add("line " + (i % 700));
+        }
+        ContentSnapshot content = snapshot(lines);
+        LineInterner interner = new LineInterner(1);
+        
+        int[] ids = interner.intern(content, 0, content.getLineCount());
+        
+        assertEquals(700, interner.getUniqueLineCount());
+        assertEquals(ids[5], ids[705]);
+        assertNotEquals(ids[5], ids[6]);
+    }
+    
+    private static FileDiff myers(List<String> oldLines, List<String> newLines, long timeBudgetMs) {
+        ContentSnapshot oldContent = snapshot(oldLines);
+        ContentSnapshot newContent = snapshot(newLines);
+        FileDiff.Builder builder = FileDiff.builder(oldContent, newContent);
+        MyersLineDiff.compare(builder, oldContent, 0, oldLines.size(), newContent, 0, newLines.size(), timeBudgetMs);
+        return builder.build();
+    }
+}
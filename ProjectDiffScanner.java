@@ -0,0 +1,171 @@
+package com.example.diffplugin.services;
+
+import com.example.diffplugin.model.ChangedFileDiff;
+import com.example.diffplugin.model.ContentSnapshot;
+import com.example.diffplugin.model.FileDiff;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.components.Service;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.changes.ChangeListManager;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import git4idea.repo.GitRepository;
+import git4idea.repo.GitRepositoryManager;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Diffs every changed file of the project on a bounded pool and streams the per-file results.
+ * Disposed with the project, which drops the files still queued.
+ */
+@Service
+public final class ProjectDiffScanner implements Disposable {
+    private static final Logger LOG = Logger.getInstance(ProjectDiffScanner.class);
+    private static final int MAX_PARALLELISM = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long POLL_INTERVAL_MS = 50;
+    
+    private final Project project;
+    private final ExecutorService executor =
+        AppExecutorUtil.createBoundedApplicationPoolExecutor("UnifiedDiff Project Scan", MAX_PARALLELISM);
+    private final Set<Future<?>> pendingFutures = ConcurrentHashMap.newKeySet();
+    private volatile boolean disposed;
+    
+    public ProjectDiffScanner(Project project) {
+        this.project = project;
+    }
+    
+    /**
+     * Lists the modified files of the project's git repositories, as known to the change list manager
+     */
+    public List<VirtualFile> collectChangedFiles() {
+        GitRepositoryManager repositoryManager = GitRepositoryManager.getInstance(project);
+        List<VirtualFile> changedFiles = new ArrayList<>();
+        for (VirtualFile file : ChangeListManager.getInstance(project).getAffectedFiles()) {
+            if (file.isValid() && !file.isDirectory() && !file.getFileType().isBinary()
+                && repositoryManager.getRepositoryForFileQuick(file) != null) {
+                changedFiles.add(file);
+            }
+        }
+        return changedFiles;
+    }
+    
+    /**
+     * Computes the diffs of the given files in parallel. Each result is passed to the consumer on
+     * a worker thread as soon as it is ready. Blocks until all files are done; cancelling the
+     * indicator stops the remaining work and throws {@link ProcessCanceledException}.
+     */
+    public void scan(List<VirtualFile> files, ProgressIndicator indicator, Consumer<ChangedFileDiff> consumer) {
+        AtomicInteger completed = new AtomicInteger();
+        List<Future<?>> futures = new ArrayList<>(files.size());
+        
+        try {
+            for (VirtualFile file : files) {
+                if (disposed) {
+                    throw new ProcessCanceledException();
+                }
+                futures.add(executor.submit(() -> ProgressManager.getInstance().executeProcessUnderProgress(() -> {
+                    indicator.checkCanceled();
+                    ChangedFileDiff result = diffFile(file);
+                    if (result != null) {
+                        consumer.accept(result);
+                    }
+                    indicator.setFraction((double) completed.incrementAndGet() / files.size());
+                }, indicator)));
+            }
+            pendingFutures.addAll(futures);
+            
+            for (Future<?> future : futures) {
+                awaitCompletion(future, indicator);
+            }
+        } finally {
+            // No-op for finished tasks, drops the queued ones after a cancellation
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+            pendingFutures.removeAll(futures);
+        }
+    }
+    
+    @Override
+    public void dispose() {
+        disposed = true;
+        // Running tasks finish their file, the scans waiting for them see the cancellation
+        for (Future<?> future : pendingFutures) {
+            future.cancel(false);
+        }
+        pendingFutures.clear();
+    }
+    
+    private void awaitCompletion(Future<?> future, ProgressIndicator indicator) {
+        while (true) {
+            indicator.checkCanceled();
+            try {
+                future.get(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // Keep polling so that cancellation is noticed quickly
+            } catch (CancellationException e) {
+                // Dropped because the service was disposed
+                throw new ProcessCanceledException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ProcessCanceledException) {
+                    throw (ProcessCanceledException) e.getCause();
+                }
+                LOG.warn("Failed to diff a changed file", e.getCause());
+                return;
+            }
+        }
+    }
+    
+    private @Nullable ChangedFileDiff diffFile(VirtualFile file) {
+        GitRepository repository = GitRepositoryManager.getInstance(project).getRepositoryForFileQuick(file);
+        if (repository == null || !file.isValid()) {
+            return null;
+        }
+        
+        GitService gitService = project.getService(GitService.class);
+        Optional<ContentSnapshot> currentContent = gitService.getCurrentContent(file);
+        if (currentContent.isEmpty()) {
+            return null;
+        }
+        
+        // Files that are not in HEAD yet are entirely new
+        ContentSnapshot baseline = gitService.getBaselineContent(file).orElseGet(() -> ContentSnapshot.of(""));
+        
+        DiffCalculationService diffService = project.getService(DiffCalculationService.class);
+        FileDiff fileDiff = diffService.calculateDiff(baseline, currentContent.get());
+        if (fileDiff.isEmpty()) {
+            return null;
+        }
+        if (gitService.isStagedModeEnabled()) {
+            Optional<ContentSnapshot> index = gitService.getIndexContent(file);
+            if (index.isPresent()) {
+                fileDiff = diffService.classifyStages(fileDiff, index.get());
+            }
+        }
+        
+        String relativePath = VfsUtilCore.getRelativePath(file, repository.getRoot());
+        return ChangedFileDiff.of(file, relativePath != null ? relativePath : file.getPath(), fileDiff);
+    }
+}
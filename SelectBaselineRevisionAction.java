@@ -0,0 +1,138 @@
+package com.example.diffplugin.actions;
+
+import com.example.diffplugin.services.GitService;
+import com.example.diffplugin.services.InlineDiffService;
+import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.ui.popup.JBPopupFactory;
+import git4idea.GitBranch;
+import git4idea.GitLocalBranch;
+import git4idea.branch.GitBranchUtil;
+import git4idea.repo.GitBranchTrackInfo;
+import git4idea.repo.GitRepository;
+import git4idea.repo.GitRepositoryManager;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Chooses the revision inline diffs are computed against: HEAD, the merge base with the
+ * upstream branch, any branch or a revision typed in by the user
+ */
+public class SelectBaselineRevisionAction extends AnAction {
+    private static final Logger LOG = Logger.getInstance(SelectBaselineRevisionAction.class);
+    private static final String OTHER_REVISION = "Other revision...";
+    
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) return;
+        
+        GitService gitService = project.getService(GitService.class);
+        List<String> choices = collectChoices(project);
+        JBPopupFactory.getInstance()
+            .createPopupChooserBuilder(choices)
+            .setTitle("Compare Against (Current: " + gitService.getBaselineRevision() + ")")
+            .setNamerForFiltering(choice -> choice)
+            .setItemChosenCallback(choice -> {
+                if (OTHER_REVISION.equals(choice)) {
+                    String revision = Messages.showInputDialog(project,
+                        "Branch, tag or commit, or " + GitService.MERGE_BASE_PREFIX + "<ref> for the merge base of HEAD and a ref:",
+                        "Baseline Revision", null, gitService.getBaselineRevision(), null);
+                    if (revision != null && !revision.isBlank()) {
+                        validateAndSelectBaseline(project, revision.trim());
+                    }
+                } else {
+                    selectBaseline(project, choice);
+                }
+            })
+            .createPopup()
+            .showCenteredInCurrentWindow(project);
+    }
+    
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null);
+    }
+    
+    private static List<String> collectChoices(Project project) {
+        Set<String> choices = new LinkedHashSet<>();
+        choices.add("HEAD");
+        List<String> branches = new ArrayList<>();
+        for (GitRepository repository : GitRepositoryManager.getInstance(project).getRepositories()) {
+            GitLocalBranch currentBranch = repository.getCurrentBranch();
+            GitBranchTrackInfo trackInfo = currentBranch != null ? GitBranchUtil.getTrackInfoForBranch(repository, currentBranch) : null;
+            if (trackInfo != null) {
+                choices.add(GitService.MERGE_BASE_PREFIX + trackInfo.getRemoteBranch().getName());
+            }
+            for (GitBranch branch : repository.getBranches().getLocalBranches()) {
+                branches.add(branch.getName());
+            }
+            for (GitBranch branch : repository.getBranches().getRemoteBranches()) {
+                branches.add(branch.getName());
+            }
+        }
+        choices.addAll(branches);
+        choices.add(OTHER_REVISION);
+        return new ArrayList<>(choices);
+    }
+    
+    /**
+     * Checks a typed revision in the background before switching to it. A revision that exists
+     * in none of the repositories is refused with an error instead of leaving every file without
+     * a baseline.
+     */
+    private static void validateAndSelectBaseline(Project project, String revision) {
+        new Task.Backgroundable(project, "Checking revision " + revision, true) {
+            private boolean found;
+            
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                GitService gitService = project.getService(GitService.class);
+                for (GitRepository repository : GitRepositoryManager.getInstance(project).getRepositories()) {
+                    indicator.checkCanceled();
+                    try {
+                        if (gitService.resolveRevision(repository, revision) != null) {
+                            found = true;
+                            return;
+                        }
+                    } catch (IOException | ExecutionException e) {
+                        LOG.warn("Failed to resolve " + revision + " in " + repository.getRoot().getPath(), e);
+                    }
+                }
+            }
+            
+            @Override
+            public void onSuccess() {
+                if (found) {
+                    selectBaseline(project, revision);
+                } else {
+                    Messages.showErrorDialog(project, "Revision '" + revision + "' was not found in any repository",
+                        "Baseline Revision");
+                }
+            }
+        }.queue();
+    }
+    
+    /**
+     * Switches the baseline and recomputes the diffs of all open editors against it
+     */
+    private static void selectBaseline(Project project, String revision) {
+        GitService gitService = project.getService(GitService.class);
+        if (revision.equals(gitService.getBaselineRevision())) {
+            return;
+        }
+        gitService.setBaselineRevision(revision);
+        project.getService(InlineDiffService.class).updateAllOpenEditors();
+    }
+}
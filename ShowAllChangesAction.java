@@ -0,0 +1,67 @@
+package com.example.diffplugin.actions;
+
+import com.example.diffplugin.services.ProjectDiffScanner;
+import com.example.diffplugin.toolwindow.DiffToolWindowFactory;
+import com.example.diffplugin.ui.ChangedFilesPanel;
+import com.intellij.openapi.actionSystem.AnAction;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowManager;
+import com.intellij.ui.content.Content;
+import com.intellij.ui.content.ContentFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+public class ShowAllChangesAction extends AnAction {
+    
+    @Override
+    public void actionPerformed(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        if (project == null) return;
+        
+        ToolWindow toolWindow = ToolWindowManager.getInstance(project).getToolWindow(DiffToolWindowFactory.TOOL_WINDOW_ID);
+        if (toolWindow == null) return;
+        
+        ChangedFilesPanel panel = new ChangedFilesPanel(project);
+        Content content = ContentFactory.getInstance().createContent(panel, "All Changes", false);
+        content.setDisposer(panel);
+        
+        DiffToolWindowFactory.showContent(toolWindow, content);
+        
+        Task.Backgroundable task = new Task.Backgroundable(project, "Scanning changed files", true) {
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                ProjectDiffScanner scanner = project.getService(ProjectDiffScanner.class);
+                
+                List<VirtualFile> changedFiles = scanner.collectChangedFiles();
+                panel.setTotalFiles(changedFiles.size());
+                indicator.setIndeterminate(false);
+                
+                try {
+                    scanner.scan(changedFiles, indicator, panel::addResult);
+                    panel.scanFinished(false);
+                } catch (ProcessCanceledException ex) {
+                    panel.scanFinished(true);
+                    throw ex;
+                }
+            }
+        };
+        // Attached before the task starts, so that closing the panel right away still cancels it
+        ProgressIndicator indicator = new BackgroundableProcessIndicator(task);
+        panel.attachScan(indicator);
+        ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, indicator);
+    }
+    
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null);
+    }
+}
@@ -3,7 +3,10 @@ package com.example.diffplugin.actions;
 import com.example.diffplugin.services.GitService;
 import com.example.diffplugin.services.DiffCalculationService;
 import com.example.diffplugin.ui.DiffViewPanel;
+import com.example.diffplugin.model.ContentSnapshot;
 import com.example.diffplugin.model.DiffBlock;
+import com.example.diffplugin.model.FileDiff;
+import com.example.diffplugin.toolwindow.DiffToolWindowFactory;
 import com.intellij.openapi.actionSystem.AnAction;
 import com.intellij.openapi.actionSystem.AnActionEvent;
 import com.intellij.openapi.actionSystem.CommonDataKeys;
@@ -37,18 +40,23 @@ public class ShowUnifiedDiffAction extends AnAction {
             return;
         }
         
-        Optional<String> lastCommitContent = gitService.getLastCommitContent(file);
-        Optional<String> currentContent = gitService.getCurrentContent(file);
+        Optional<ContentSnapshot> baselineContent = gitService.getBaselineContent(file);
+        Optional<ContentSnapshot> currentContent = gitService.getCurrentContent(file);
         
-        if (lastCommitContent.isEmpty() || currentContent.isEmpty()) {
+        if (baselineContent.isEmpty() || currentContent.isEmpty()) {
             // Show notification that content could not be retrieved
             return;
         }
         
-        List<DiffBlock> diffBlocks = diffService.calculateDiff(
-            lastCommitContent.get(), 
-            currentContent.get()
-        );
+        FileDiff fileDiff = diffService.calculateDiff(baselineContent.get(), currentContent.get());
+        if (gitService.isStagedModeEnabled()) {
+            // Fetched together with the baseline, or cached since
+            Optional<ContentSnapshot> indexContent = gitService.getIndexContent(file);
+            if (indexContent.isPresent()) {
+                fileDiff = diffService.classifyStages(fileDiff, indexContent.get());
+            }
+        }
+        List<DiffBlock> diffBlocks = fileDiff.getDiffBlocks();
         
         showDiffInToolWindow(project, file, diffBlocks, currentContent.get());
     }
@@ -70,9 +78,9 @@ public class ShowUnifiedDiffAction extends AnAction {
     }
     
     private void showDiffInToolWindow(Project project, VirtualFile file, 
-                                    List<DiffBlock> diffBlocks, String currentContent) {
+                                    List<DiffBlock> diffBlocks, ContentSnapshot currentContent) {
         ToolWindowManager toolWindowManager = ToolWindowManager.getInstance(project);
-        ToolWindow toolWindow = toolWindowManager.getToolWindow("UnifiedDiff");
+        ToolWindow toolWindow = toolWindowManager.getToolWindow(DiffToolWindowFactory.TOOL_WINDOW_ID);
         
         if (toolWindow != null) {
             DiffViewPanel diffPanel = new DiffViewPanel(project, file, diffBlocks, currentContent);
@@ -84,9 +92,7 @@ public class ShowUnifiedDiffAction extends AnAction {
                 false
             );
             
-            toolWindow.getContentManager().removeAllContents(true);
-            toolWindow.getContentManager().addContent(content);
-            toolWindow.activate(null);
+            DiffToolWindowFactory.showContent(toolWindow, content);
         }
     }
 }
@@ -0,0 +1,36 @@
+package com.example.diffplugin.actions;
+
+import com.example.diffplugin.services.GitService;
+import com.example.diffplugin.services.InlineDiffService;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.actionSystem.ToggleAction;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Switches between diffs against the baseline only and diffs that also compare the index,
+ * marking each block as staged, unstaged or partially staged
+ */
+public class ToggleStagedModeAction extends ToggleAction {
+    
+    @Override
+    public boolean isSelected(@NotNull AnActionEvent e) {
+        Project project = e.getProject();
+        return project != null && project.getService(GitService.class).isStagedModeEnabled();
+    }
+    
+    @Override
+    public void setSelected(@NotNull AnActionEvent e, boolean state) {
+        Project project = e.getProject();
+        if (project == null) return;
+        
+        project.getService(GitService.class).setStagedModeEnabled(state);
+        project.getService(InlineDiffService.class).updateAllOpenEditors();
+    }
+    
+    @Override
+    public void update(@NotNull AnActionEvent e) {
+        super.update(e);
+        e.getPresentation().setEnabledAndVisible(e.getProject() != null);
+    }
+}
@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("org.jetbrains.intellij") version "1.17.3"
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 group = "com.example.diffplugin"
@@ -22,6 +23,20 @@ dependencies {
     testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 }
 
+// Benchmarks run outside of the IDE but against the same platform classes
+sourceSets {
+    named("jmh") {
+        compileClasspath += sourceSets["main"].compileClasspath
+        runtimeClasspath += sourceSets["main"].compileClasspath
+    }
+}
+
+jmh {
+    jmhVersion.set("1.37")
+    profilers.add("gc")
+    resultFormat.set("JSON")
+}
+
 tasks {
     withType<JavaCompile> {
         sourceCompatibility = "17"